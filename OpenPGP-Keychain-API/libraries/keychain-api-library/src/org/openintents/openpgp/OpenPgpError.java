@@ -28,6 +28,9 @@ public class OpenPgpError implements Parcelable {
     public static final int NO_OR_WRONG_PASSPHRASE = 2;
     public static final int NO_USER_IDS = 3;
 
+    // too many operations pending for the calling app, try again later
+    public static final int SERVICE_BUSY = 4;
+
     int errorId;
     String message;
 
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.openpgp.util;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the data of one item of a batch written by {@link FramedOutputStream}. The items follow
+ * each other in the same stream, every item is a sequence of chunks, each prefixed with its
+ * length as 4 byte big endian int, and ends with a chunk of length 0.
+ *
+ * Closing this stream skips the rest of the item, the underlying stream is not closed.
+ */
+public class FramedInputStream extends InputStream {
+    private static final int SKIP_BUFFER_SIZE = 8192;
+
+    private final DataInputStream mIn;
+    private int mChunkLeft = 0;
+    private boolean mEnd = false;
+
+    public FramedInputStream(InputStream in) {
+        mIn = (in instanceof DataInputStream) ? (DataInputStream) in : new DataInputStream(in);
+    }
+
+    /**
+     * @return false if the end of the item is reached
+     */
+    private boolean nextChunk() throws IOException {
+        while (!mEnd && mChunkLeft == 0) {
+            int length;
+            try {
+                length = mIn.readInt();
+            } catch (EOFException e) {
+                // stream ended without end of item, treat as end
+                length = 0;
+            }
+            if (length < 0) {
+                throw new IOException("Invalid chunk length " + length);
+            }
+            if (length == 0) {
+                mEnd = true;
+            }
+            mChunkLeft = length;
+        }
+        return !mEnd;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        int b = mIn.read();
+        if (b == -1) {
+            throw new EOFException("Stream ended inside of chunk");
+        }
+        mChunkLeft--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int read = mIn.read(buffer, offset, Math.min(length, mChunkLeft));
+        if (read == -1) {
+            throw new EOFException("Stream ended inside of chunk");
+        }
+        mChunkLeft -= read;
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mEnd ? 0 : Math.min(mChunkLeft, mIn.available());
+    }
+
+    @Override
+    public void close() throws IOException {
+        // skip to the next item, chunk lengths come from the client, never allocate them
+        byte[] skipBuffer = null;
+        while (nextChunk()) {
+            int skipped = (int) mIn.skip(mChunkLeft);
+            if (skipped <= 0) {
+                if (skipBuffer == null) {
+                    skipBuffer = new byte[SKIP_BUFFER_SIZE];
+                }
+                skipped = mIn.read(skipBuffer, 0, Math.min(mChunkLeft, skipBuffer.length));
+                if (skipped == -1) {
+                    throw new EOFException("Stream ended inside of chunk");
+                }
+            }
+            mChunkLeft -= skipped;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.openpgp.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the data of one item of a batch, to be read by {@link FramedInputStream}. Data is
+ * collected and written as chunks, closing this stream ends the item. The underlying stream is
+ * not closed, so the next item can be written to it.
+ */
+public class FramedOutputStream extends OutputStream {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final DataOutputStream mOut;
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    private int mChunkLength = 0;
+    private boolean mClosed = false;
+
+    public FramedOutputStream(OutputStream out) {
+        mOut = (out instanceof DataOutputStream) ? (DataOutputStream) out : new DataOutputStream(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mChunkLength == CHUNK_SIZE) {
+            writeChunk();
+        }
+        mChunk[mChunkLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (mChunkLength == CHUNK_SIZE) {
+                writeChunk();
+            }
+            int count = Math.min(length, CHUNK_SIZE - mChunkLength);
+            System.arraycopy(buffer, offset, mChunk, mChunkLength, count);
+            mChunkLength += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        if (mChunkLength == 0) {
+            // a chunk of length 0 ends the item
+            return;
+        }
+        mOut.writeInt(mChunkLength);
+        mOut.write(mChunk, 0, mChunkLength);
+        mChunkLength = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeChunk();
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        writeChunk();
+        mOut.writeInt(0);
+        mOut.flush();
+    }
+}
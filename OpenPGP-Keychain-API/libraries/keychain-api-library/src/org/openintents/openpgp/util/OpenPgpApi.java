@@ -27,6 +27,8 @@ import org.openintents.openpgp.IOpenPgpService;
 import org.openintents.openpgp.OpenPgpError;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 public class OpenPgpApi {
 
@@ -111,6 +113,19 @@ public class OpenPgpApi {
      */
     public static final String ACTION_DOWNLOAD_KEYS = "org.openintents.openpgp.action.DOWNLOAD_KEYS";
 
+    /**
+     * Executes many SIGN, ENCRYPT, SIGN_AND_ENCRYPT, DECRYPT_VERIFY or GET_KEY_IDS requests in
+     * one call, see executeBatchApi. Input and output of the requests are sent one after another
+     * through the same descriptors, framed by FramedOutputStream/FramedInputStream.
+     *
+     * Intent extras:
+     * ArrayList<Intent>    EXTRA_BATCH_REQUESTS
+     *
+     * returned extras:
+     * ArrayList<Intent>    RESULT_BATCH_RESULTS   (one result per request, in the same order)
+     */
+    public static final String ACTION_BATCH = "org.openintents.openpgp.action.BATCH";
+
     /* Bundle params */
     public static final String EXTRA_API_VERSION = "api_version";
 
@@ -125,6 +140,9 @@ public class OpenPgpApi {
     // optional parameter:
     public static final String EXTRA_PASSPHRASE = "passphrase";
 
+    // BATCH
+    public static final String EXTRA_BATCH_REQUESTS = "batch_requests";
+
     /* Service Bundle returns */
     public static final String RESULT_CODE = "result_code";
 
@@ -141,6 +159,9 @@ public class OpenPgpApi {
     // DECRYPT_VERIFY
     public static final String RESULT_SIGNATURE = "signature";
 
+    // BATCH
+    public static final String RESULT_BATCH_RESULTS = "batch_results";
+
     IOpenPgpService mService;
     Context mContext;
 
@@ -240,4 +261,54 @@ public class OpenPgpApi {
         }
     }
 
+    /**
+     * Executes all requests with a single call to the service, the service checks the
+     * permissions only once and reuses keys between the requests.
+     *
+     * @param requests      request Intents, as given to executeApi
+     * @param inputStreams  input of each request, entries may be null
+     * @param outputStreams output of each request, entries may be null
+     * @return result with RESULT_BATCH_RESULTS containing the result of each request
+     */
+    public Intent executeBatchApi(ArrayList<Intent> requests, List<InputStream> inputStreams,
+                                  List<OutputStream> outputStreams) {
+        try {
+            for (Intent request : requests) {
+                request.putExtra(EXTRA_API_VERSION, OpenPgpApi.API_VERSION);
+            }
+            Intent data = new Intent(ACTION_BATCH);
+            data.putExtra(EXTRA_API_VERSION, OpenPgpApi.API_VERSION);
+            data.putParcelableArrayListExtra(EXTRA_BATCH_REQUESTS, requests);
+
+            ParcelFileDescriptor input = ParcelFileDescriptorUtil.pipeFromFramed(inputStreams,
+                    null);
+            ParcelFileDescriptor output = ParcelFileDescriptorUtil.pipeToFramed(outputStreams,
+                    null);
+
+            // blocks until all requests are done
+            Intent result = mService.execute(data, input, output);
+            // close() is required to halt the transfer
+            output.close();
+
+            // set class loader to current context to allow unparcelling
+            // of OpenPgpError and OpenPgpSignatureResult
+            result.setExtrasClassLoader(mContext.getClassLoader());
+            ArrayList<Intent> results = result.getParcelableArrayListExtra(RESULT_BATCH_RESULTS);
+            if (results != null) {
+                for (Intent itemResult : results) {
+                    itemResult.setExtrasClassLoader(mContext.getClassLoader());
+                }
+            }
+
+            return result;
+        } catch (Exception e) {
+            Log.e(OpenPgpApi.TAG, "Exception", e);
+            Intent result = new Intent();
+            result.putExtra(RESULT_CODE, RESULT_CODE_ERROR);
+            result.putExtra(RESULT_ERROR,
+                    new OpenPgpError(OpenPgpError.CLIENT_SIDE_ERROR, e.getMessage()));
+            return result;
+        }
+    }
+
 }
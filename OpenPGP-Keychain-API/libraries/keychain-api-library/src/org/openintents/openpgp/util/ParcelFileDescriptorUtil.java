@@ -19,12 +19,47 @@ package org.openintents.openpgp.util;
 
 import android.os.ParcelFileDescriptor;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class ParcelFileDescriptorUtil {
 
+    // same as the capacity of a pipe, one read or write fills or empties it
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Transfers block until the other side is done, so the number of threads can not be bounded.
+     * Idle threads are kept for a while to be reused by the next executeApi call.
+     */
+    private static final ExecutorService sTransferExecutor = new ThreadPoolExecutor(0,
+            Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ParcelFileDescriptor Transfer Thread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // one buffer per transfer thread, reused with the thread
+    private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
     public interface IThreadListener {
         void onThreadFinished(final Thread thread);
     }
@@ -35,10 +70,9 @@ public class ParcelFileDescriptorUtil {
         ParcelFileDescriptor readSide = pipe[0];
         ParcelFileDescriptor writeSide = pipe[1];
 
-        // start the transfer thread
-        new TransferThread(inputStream, new ParcelFileDescriptor.AutoCloseOutputStream(writeSide),
-                listener)
-                .start();
+        // start the transfer
+        sTransferExecutor.execute(new Transfer(inputStream,
+                new ParcelFileDescriptor.AutoCloseOutputStream(writeSide), listener));
 
         return readSide;
     }
@@ -49,55 +83,226 @@ public class ParcelFileDescriptorUtil {
         ParcelFileDescriptor readSide = pipe[0];
         ParcelFileDescriptor writeSide = pipe[1];
 
-        // start the transfer thread
-        new TransferThread(new ParcelFileDescriptor.AutoCloseInputStream(readSide), outputStream,
-                listener)
-                .start();
+        // start the transfer
+        sTransferExecutor.execute(new Transfer(
+                new ParcelFileDescriptor.AutoCloseInputStream(readSide), outputStream, listener));
 
         return writeSide;
     }
 
-    static class TransferThread extends Thread {
-        final InputStream mIn;
+    /**
+     * Like {@link #pipeFrom(InputStream, IThreadListener)}, but writes all input streams one
+     * after another, framed to be read by {@link FramedInputStream}. Null entries are written as
+     * empty items.
+     */
+    public static ParcelFileDescriptor pipeFromFramed(List<InputStream> inputStreams,
+                                                      IThreadListener listener) throws IOException {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        ParcelFileDescriptor readSide = pipe[0];
+        ParcelFileDescriptor writeSide = pipe[1];
+
+        sTransferExecutor.execute(new FramedWriteTransfer(inputStreams,
+                new ParcelFileDescriptor.AutoCloseOutputStream(writeSide), listener));
+
+        return readSide;
+    }
+
+    /**
+     * Like {@link #pipeTo(OutputStream, IThreadListener)}, but reads items written by
+     * {@link FramedOutputStream} into the given output streams, one item per stream. Items for
+     * null entries are skipped.
+     */
+    public static ParcelFileDescriptor pipeToFramed(List<OutputStream> outputStreams,
+                                                    IThreadListener listener) throws IOException {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        ParcelFileDescriptor readSide = pipe[0];
+        ParcelFileDescriptor writeSide = pipe[1];
+
+        sTransferExecutor.execute(new FramedReadTransfer(
+                new ParcelFileDescriptor.AutoCloseInputStream(readSide), outputStreams, listener));
+
+        return writeSide;
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = sBuffer.get();
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            in.close();
+        } catch (IOException e) {
+            //Log.e(OpenPgpApi.TAG, "Transfer", e);
+        }
+    }
+
+    private static void closeQuietly(OutputStream out) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            //Log.e(OpenPgpApi.TAG, "Transfer", e);
+        }
+    }
+
+    static class FramedWriteTransfer implements Runnable {
+        final List<InputStream> mIns;
         final OutputStream mOut;
         final IThreadListener mListener;
 
-        TransferThread(InputStream in, OutputStream out, IThreadListener listener) {
-            super("ParcelFileDescriptor Transfer Thread");
-            mIn = in;
+        FramedWriteTransfer(List<InputStream> ins, OutputStream out, IThreadListener listener) {
+            mIns = ins;
             mOut = out;
             mListener = listener;
-            setDaemon(true);
         }
 
         @Override
         public void run() {
-            byte[] buf = new byte[1024];
-            int len;
+            try {
+                for (InputStream in : mIns) {
+                    FramedOutputStream item = new FramedOutputStream(mOut);
+                    try {
+                        if (in != null) {
+                            copy(in, item);
+                        }
+                    } finally {
+                        closeQuietly(in);
+                    }
+                    item.close();
+                }
+            } catch (IOException e) {
+                //Log.e(OpenPgpApi.TAG, "Transfer: writing failed", e);
+            } finally {
+                for (InputStream in : mIns) {
+                    closeQuietly(in);
+                }
+                closeQuietly(mOut);
+            }
+            if (mListener != null) {
+                mListener.onThreadFinished(Thread.currentThread());
+            }
+        }
+    }
+
+    static class FramedReadTransfer implements Runnable {
+        final InputStream mIn;
+        final List<OutputStream> mOuts;
+        final IThreadListener mListener;
 
+        FramedReadTransfer(InputStream in, List<OutputStream> outs, IThreadListener listener) {
+            mIn = in;
+            mOuts = outs;
+            mListener = listener;
+        }
+
+        @Override
+        public void run() {
             try {
-                while ((len = mIn.read(buf)) > 0) {
-                    mOut.write(buf, 0, len);
+                for (OutputStream out : mOuts) {
+                    FramedInputStream item = new FramedInputStream(mIn);
+                    try {
+                        if (out != null) {
+                            copy(item, out);
+                            out.flush();
+                        }
+                    } finally {
+                        closeQuietly(out);
+                    }
+                    item.close();
                 }
-                mOut.flush(); // just to be safe
             } catch (IOException e) {
-                //Log.e(OpenPgpApi.TAG, "TransferThread" + getId() + ": writing failed", e);
+                //Log.e(OpenPgpApi.TAG, "Transfer: reading failed", e);
             } finally {
-                try {
-                    mIn.close();
-                } catch (IOException e) {
-                    //Log.e(OpenPgpApi.TAG, "TransferThread" + getId(), e);
+                closeQuietly(mIn);
+                for (OutputStream out : mOuts) {
+                    closeQuietly(out);
                 }
-                try {
-                    mOut.close();
-                } catch (IOException e) {
-                    //Log.e(OpenPgpApi.TAG, "TransferThread" + getId(), e);
+            }
+            if (mListener != null) {
+                mListener.onThreadFinished(Thread.currentThread());
+            }
+        }
+    }
+
+    static class Transfer implements Runnable {
+        final InputStream mIn;
+        final OutputStream mOut;
+        final IThreadListener mListener;
+
+        Transfer(InputStream in, OutputStream out, IThreadListener listener) {
+            mIn = in;
+            mOut = out;
+            mListener = listener;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!transferFile()) {
+                    copy(mIn, mOut);
                 }
+                mOut.flush(); // just to be safe
+            } catch (IOException e) {
+                //Log.e(OpenPgpApi.TAG, "Transfer: writing failed", e);
+            } finally {
+                closeQuietly(mIn);
+                closeQuietly(mOut);
             }
             if (mListener != null) {
-                //Log.d(OpenPgpApi.TAG, "TransferThread " + getId() + " finished!");
-                mListener.onThreadFinished(this);
+                //Log.d(OpenPgpApi.TAG, "Transfer finished!");
+                mListener.onThreadFinished(Thread.currentThread());
+            }
+        }
+
+        /**
+         * Lets the kernel copy the data if the input is a regular file and the output a file or
+         * pipe, without passing it through a buffer.
+         *
+         * @return false if the streams are not suitable or the transfer stopped early, the rest
+         * of the input has to be copied then
+         */
+        private boolean transferFile() throws IOException {
+            if (!(mIn instanceof FileInputStream) || !(mOut instanceof FileOutputStream)
+                    || mIn instanceof ParcelFileDescriptor.AutoCloseInputStream) {
+                // the input of pipeTo is always a pipe
+                return false;
+            }
+            FileChannel in = ((FileInputStream) mIn).getChannel();
+            FileChannel out = ((FileOutputStream) mOut).getChannel();
+
+            long position;
+            long size;
+            try {
+                position = in.position();
+                size = in.size();
+            } catch (IOException e) {
+                // input is a pipe or socket without position and size
+                return false;
+            }
+            if (position >= size) {
+                // pipes report a size of 0, the buffered copy works for empty files as well
+                return false;
+            }
+
+            while (position < size) {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
             }
+            // on a short transfer the buffered copy continues from this position
+            in.position(position);
+            return position == size;
         }
     }
-}
\ No newline at end of file
+}
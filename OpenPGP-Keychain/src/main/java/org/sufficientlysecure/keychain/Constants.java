@@ -40,6 +40,9 @@ public final class Constants {
 
     public static final String INTENT_PREFIX = PACKAGE_NAME + ".action.";
 
+    // chunk size of the encrypt and decrypt loops, files are read in blocks of this size
+    public static final int DATA_BUFFER_SIZE = 1 << 18;
+
     public static final class path {
         public static final String APP_DIR = Environment.getExternalStorageDirectory()
                 + "/OpenPGP-Keychain";
@@ -52,6 +55,7 @@ public final class Constants {
         public static final String DEFAULT_MESSAGE_COMPRESSION = "defaultMessageCompression";
         public static final String DEFAULT_FILE_COMPRESSION = "defaultFileCompression";
         public static final String PASS_PHRASE_CACHE_TTL = "passPhraseCacheTtl";
+        public static final String PASS_PHRASE_CACHE_PRIVATE_KEYS = "passPhraseCachePrivateKeys";
         public static final String LANGUAGE = "language";
         public static final String FORCE_V3_SIGNATURES = "forceV3Signatures";
         public static final String KEY_SERVERS = "keyServers";
@@ -23,14 +23,19 @@ import org.sufficientlysecure.keychain.util.Log;
 
 import android.app.Activity;
 import android.content.ActivityNotFoundException;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Environment;
+import android.provider.OpenableColumns;
 import android.support.v4.app.Fragment;
 import android.widget.Toast;
 
+import java.io.File;
+
 public class FileHelper {
 
     /**
@@ -95,6 +100,50 @@ public class FileHelper {
         return intent;
     }
 
+    /**
+     * Gets the size of the content behind the uri without reading it. The size is used to display
+     * progress when encrypting/decrypting
+     *
+     * @param context
+     * @param uri
+     * @return size in bytes or -1 if the provider does not know it
+     */
+    public static long getFileSize(Context context, Uri uri) {
+        if (ContentResolver.SCHEME_FILE.equalsIgnoreCase(uri.getScheme())) {
+            return new File(uri.getPath()).length();
+        }
+
+        long size = -1;
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(uri, new String[]{OpenableColumns.SIZE},
+                    null, null, null);
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                size = cursor.getLong(0);
+            }
+        } catch (Exception e) {
+            // not all providers support OpenableColumns
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (size >= 0) {
+            return size;
+        }
+
+        try {
+            AssetFileDescriptor fd = context.getContentResolver().openAssetFileDescriptor(uri, "r");
+            if (fd != null) {
+                size = fd.getLength(); // UNKNOWN_LENGTH is -1
+                fd.close();
+            }
+        } catch (Exception e) {
+            Log.d(Constants.TAG, "Size of " + uri + " is unknown", e);
+        }
+        return size;
+    }
+
     /**
      * Get a file path from a Uri.
      * 
@@ -75,6 +75,16 @@ public class Preferences {
         editor.commit();
     }
 
+    public boolean getPassPhraseCachePrivateKeys() {
+        return mSharedPreferences.getBoolean(Constants.pref.PASS_PHRASE_CACHE_PRIVATE_KEYS, false);
+    }
+
+    public void setPassPhraseCachePrivateKeys(boolean value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Constants.pref.PASS_PHRASE_CACHE_PRIVATE_KEYS, value);
+        editor.commit();
+    }
+
     public int getDefaultEncryptionAlgorithm() {
         return mSharedPreferences.getInt(Constants.pref.DEFAULT_ENCRYPTION_ALGORITHM,
                 PGPEncryptedData.AES_256);
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureGenerator;
+import org.spongycastle.openpgp.PGPV3SignatureGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SignatureException;
+
+/**
+ * Canonicalizes text written to it and passes it on to a signature and/or an output stream.
+ * Lines may end with CR, LF or CRLF, they are separated by CRLF and trailing spaces and tabs are
+ * removed. This works on bytes, no String is created per line.
+ *
+ * In clear text mode (used for cleartext signatures) the line ending of the last line is not part
+ * of the text, otherwise every line ending is passed on.
+ *
+ * Closing this stream does not close the output stream.
+ */
+public class CanonicalTextOutputStream extends OutputStream {
+    private static final byte[] LINE_SEPARATOR = {'\r', '\n'};
+
+    private final OutputStream mOut;
+    private final boolean mClearText;
+
+    // at most one of them is set
+    private final PGPSignatureGenerator mSignatureGenerator;
+    private final PGPV3SignatureGenerator mSignatureV3Generator;
+    private final PGPSignature mSignature;
+
+    private boolean mFirstLine = true;
+    private boolean mLineOpen = false;
+    private boolean mLastWasCr = false;
+
+    /** whitespace at the end of the current line, only passed on if more text follows */
+    private byte[] mWhitespace = new byte[64];
+    private int mWhitespaceLength = 0;
+
+    private final byte[] mSingleByte = new byte[1];
+
+    public CanonicalTextOutputStream(OutputStream out, boolean clearText,
+                                     PGPSignatureGenerator signatureGenerator) {
+        this(out, clearText, signatureGenerator, null, null);
+    }
+
+    public CanonicalTextOutputStream(OutputStream out, boolean clearText,
+                                     PGPV3SignatureGenerator signatureV3Generator) {
+        this(out, clearText, null, signatureV3Generator, null);
+    }
+
+    public CanonicalTextOutputStream(OutputStream out, boolean clearText, PGPSignature signature) {
+        this(out, clearText, null, null, signature);
+    }
+
+    /**
+     * Passes the canonical text only to the output stream, e.g. to hash it before the signature
+     * is known
+     */
+    public CanonicalTextOutputStream(OutputStream out, boolean clearText) {
+        this(out, clearText, null, null, null);
+    }
+
+    private CanonicalTextOutputStream(OutputStream out, boolean clearText,
+                                      PGPSignatureGenerator signatureGenerator,
+                                      PGPV3SignatureGenerator signatureV3Generator,
+                                      PGPSignature signature) {
+        mOut = out;
+        mClearText = clearText;
+        mSignatureGenerator = signatureGenerator;
+        mSignatureV3Generator = signatureV3Generator;
+        mSignature = signature;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mSingleByte[0] = (byte) b;
+        write(mSingleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+        // text of the current line not passed on yet
+        int runStart = offset;
+        // end of this text without trailing whitespace
+        int contentEnd = offset;
+
+        for (int i = offset; i < end; i++) {
+            byte b = buffer[i];
+            if (b == '\r' || b == '\n') {
+                if (b == '\n' && mLastWasCr) {
+                    // second half of CRLF
+                    mLastWasCr = false;
+                    runStart = contentEnd = i + 1;
+                    continue;
+                }
+                mLastWasCr = (b == '\r');
+
+                startLine();
+                passContent(buffer, runStart, contentEnd);
+                endLine();
+                runStart = contentEnd = i + 1;
+            } else {
+                mLastWasCr = false;
+                startLine();
+                if (b != ' ' && b != '\t') {
+                    contentEnd = i + 1;
+                }
+            }
+        }
+
+        if (mLineOpen) {
+            passContent(buffer, runStart, contentEnd);
+            holdWhitespace(buffer, contentEnd, end);
+        }
+    }
+
+    private void startLine() throws IOException {
+        if (mLineOpen) {
+            return;
+        }
+        if (mClearText && !mFirstLine) {
+            update(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+        }
+        mFirstLine = false;
+        mLineOpen = true;
+    }
+
+    private void endLine() throws IOException {
+        // trailing whitespace is dropped
+        mWhitespaceLength = 0;
+        mLineOpen = false;
+        if (!mClearText) {
+            update(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+        }
+    }
+
+    private void passContent(byte[] buffer, int start, int end) throws IOException {
+        if (end <= start) {
+            return;
+        }
+        if (mWhitespaceLength > 0) {
+            // whitespace held back was not trailing
+            update(mWhitespace, 0, mWhitespaceLength);
+            mWhitespaceLength = 0;
+        }
+        update(buffer, start, end - start);
+    }
+
+    private void holdWhitespace(byte[] buffer, int start, int end) {
+        int length = end - start;
+        if (length <= 0) {
+            return;
+        }
+        if (mWhitespaceLength + length > mWhitespace.length) {
+            byte[] grown = new byte[Math.max(mWhitespace.length * 2, mWhitespaceLength + length)];
+            System.arraycopy(mWhitespace, 0, grown, 0, mWhitespaceLength);
+            mWhitespace = grown;
+        }
+        System.arraycopy(buffer, start, mWhitespace, mWhitespaceLength, length);
+        mWhitespaceLength += length;
+    }
+
+    private void update(byte[] buffer, int offset, int length) throws IOException {
+        if (mOut != null) {
+            mOut.write(buffer, offset, length);
+        }
+        try {
+            if (mSignatureGenerator != null) {
+                mSignatureGenerator.update(buffer, offset, length);
+            } else if (mSignatureV3Generator != null) {
+                mSignatureV3Generator.update(buffer, offset, length);
+            } else if (mSignature != null) {
+                mSignature.update(buffer, offset, length);
+            }
+        } catch (SignatureException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.bcpg.ContainedPacket;
+import org.spongycastle.openpgp.PGPEncryptedDataGenerator;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
+import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Public key encryption of the session key for many recipients, computed in parallel.
+ *
+ * PGPEncryptedDataGenerator asks its methods for their session key packet one after another when
+ * the stream is opened. The methods added by this class compute the packets of all recipients on
+ * the first request, with up to one thread per processor, and then return them one by one. The
+ * packets are written in the order the keys were given. Few recipients are handled on the calling
+ * thread.
+ */
+public class ParallelKeyEncryptionMethods {
+    // below this many recipients starting the work on other threads costs more than it saves
+    private static final int MIN_PARALLEL_RECIPIENTS = 4;
+    // idle threads of the shared pool are stopped after this time
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ExecutorService sExecutor;
+
+    private final ArrayList<PGPKeyEncryptionMethodGenerator> mGenerators =
+            new ArrayList<PGPKeyEncryptionMethodGenerator>();
+
+    private ContainedPacket[] mPackets;
+    private int mEncAlgorithm;
+    private byte[] mSessionInfo;
+
+    public ParallelKeyEncryptionMethods(PGPPublicKey[] keys) {
+        for (PGPPublicKey key : keys) {
+            if (key != null) {
+                mGenerators.add(new JcePublicKeyKeyEncryptionMethodGenerator(key));
+            }
+        }
+    }
+
+    public void addTo(PGPEncryptedDataGenerator encryptedDataGenerator) {
+        for (int i = 0; i < mGenerators.size(); i++) {
+            final int index = i;
+            encryptedDataGenerator.addMethod(new PGPKeyEncryptionMethodGenerator() {
+                @Override
+                public ContainedPacket generate(int encAlgorithm, byte[] sessionInfo)
+                        throws PGPException {
+                    return getPacket(index, encAlgorithm, sessionInfo);
+                }
+            });
+        }
+    }
+
+    private synchronized ContainedPacket getPacket(int index, int encAlgorithm,
+                                                   byte[] sessionInfo) throws PGPException {
+        // all methods are asked with the same session key, unless the stream is opened again
+        if (mPackets == null || encAlgorithm != mEncAlgorithm
+                || !Arrays.equals(sessionInfo, mSessionInfo)) {
+            mPackets = generateAll(encAlgorithm, sessionInfo);
+            mEncAlgorithm = encAlgorithm;
+            mSessionInfo = sessionInfo;
+        }
+        return mPackets[index];
+    }
+
+    private ContainedPacket[] generateAll(final int encAlgorithm, final byte[] sessionInfo)
+            throws PGPException {
+        ContainedPacket[] packets = new ContainedPacket[mGenerators.size()];
+
+        if (packets.length < MIN_PARALLEL_RECIPIENTS
+                || Runtime.getRuntime().availableProcessors() <= 1) {
+            for (int i = 0; i < packets.length; i++) {
+                packets[i] = mGenerators.get(i).generate(encAlgorithm, sessionInfo);
+            }
+            return packets;
+        }
+
+        ArrayList<Callable<ContainedPacket>> tasks = new ArrayList<Callable<ContainedPacket>>();
+        for (final PGPKeyEncryptionMethodGenerator generator : mGenerators) {
+            tasks.add(new Callable<ContainedPacket>() {
+                @Override
+                public ContainedPacket call() throws Exception {
+                    return generator.generate(encAlgorithm, sessionInfo);
+                }
+            });
+        }
+
+        try {
+            int i = 0;
+            for (Future<ContainedPacket> future : getExecutor().invokeAll(tasks)) {
+                packets[i++] = future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PGPException) {
+                throw (PGPException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new PGPException("Encrypting session key failed!", e);
+        } catch (InterruptedException e) {
+            throw new PGPException("Interrupted while encrypting session key!", e);
+        }
+
+        return packets;
+    }
+
+    /**
+     * Pool shared by all instances, created on first use. Its threads are stopped when idle.
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "KeyEncryption");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sExecutor = executor;
+        }
+        return sExecutor;
+    }
+}
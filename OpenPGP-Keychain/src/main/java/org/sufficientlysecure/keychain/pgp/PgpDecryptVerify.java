@@ -21,6 +21,7 @@ import android.content.Context;
 
 import org.openintents.openpgp.OpenPgpSignatureResult;
 import org.spongycastle.bcpg.ArmoredInputStream;
+import org.spongycastle.bcpg.HashAlgorithmTags;
 import org.spongycastle.bcpg.SignatureSubpacketTags;
 import org.spongycastle.openpgp.PGPCompressedData;
 import org.spongycastle.openpgp.PGPEncryptedData;
@@ -42,13 +43,11 @@ import org.spongycastle.openpgp.PGPSignatureList;
 import org.spongycastle.openpgp.PGPSignatureSubpacketVector;
 import org.spongycastle.openpgp.PGPUtil;
 import org.spongycastle.openpgp.operator.PBEDataDecryptorFactory;
-import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
 import org.spongycastle.openpgp.operator.PGPDigestCalculatorProvider;
 import org.spongycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
-import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
@@ -58,14 +57,15 @@ import org.sufficientlysecure.keychain.service.PassphraseCacheService;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ProgressDialogUpdater;
+import org.sufficientlysecure.keychain.util.ThrottledProgressDialogUpdater;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 
 /**
@@ -80,6 +80,7 @@ public class PgpDecryptVerify {
     private boolean assumeSymmetric;
     private String passphrase;
     private long enforcedKeyId;
+    private HashMap<Long, PGPPrivateKey> unlockedKeys;
 
     private PgpDecryptVerify(Builder builder) {
         // private Constructor can only be called from Builder
@@ -87,10 +88,11 @@ public class PgpDecryptVerify {
         this.data = builder.data;
         this.outStream = builder.outStream;
 
-        this.progressDialogUpdater = builder.progressDialogUpdater;
+        this.progressDialogUpdater = ThrottledProgressDialogUpdater.wrap(builder.progressDialogUpdater);
         this.assumeSymmetric = builder.assumeSymmetric;
         this.passphrase = builder.passphrase;
         this.enforcedKeyId = builder.enforcedKeyId;
+        this.unlockedKeys = builder.unlockedKeys;
     }
 
     public static class Builder {
@@ -104,6 +106,7 @@ public class PgpDecryptVerify {
         private boolean assumeSymmetric = false;
         private String passphrase = "";
         private long enforcedKeyId = 0;
+        private HashMap<Long, PGPPrivateKey> unlockedKeys = null;
 
         public Builder(Context context, InputData data, OutputStream outStream) {
             this.context = context;
@@ -138,6 +141,15 @@ public class PgpDecryptVerify {
             return this;
         }
 
+        /**
+         * Private keys by key id, shared by several operations. The decryption key is taken from
+         * here if it has been unlocked before, otherwise it is added after unlocking it.
+         */
+        public Builder unlockedKeys(HashMap<Long, PGPPrivateKey> unlockedKeys) {
+            this.unlockedKeys = unlockedKeys;
+            return this;
+        }
+
         public PgpDecryptVerify build() {
             return new PgpDecryptVerify(this);
         }
@@ -155,35 +167,6 @@ public class PgpDecryptVerify {
         }
     }
 
-    public static boolean hasSymmetricEncryption(Context context, InputStream inputStream)
-            throws PgpGeneralException, IOException {
-        InputStream in = PGPUtil.getDecoderStream(inputStream);
-        PGPObjectFactory pgpF = new PGPObjectFactory(in);
-        PGPEncryptedDataList enc;
-        Object o = pgpF.nextObject();
-
-        // the first object might be a PGP marker packet.
-        if (o instanceof PGPEncryptedDataList) {
-            enc = (PGPEncryptedDataList) o;
-        } else {
-            enc = (PGPEncryptedDataList) pgpF.nextObject();
-        }
-
-        if (enc == null) {
-            throw new PgpGeneralException(context.getString(R.string.error_invalid_data));
-        }
-
-        Iterator<?> it = enc.getEncryptedDataObjects();
-        while (it.hasNext()) {
-            Object obj = it.next();
-            if (obj instanceof PGPPBEEncryptedData) {
-                return true;
-            }
-        }
-
-        return false;
-    }
-
     /**
      * Decrypts and/or verifies data based on parameters of class
      *
@@ -282,51 +265,67 @@ public class PgpDecryptVerify {
         } else {
             updateProgress(R.string.progress_finding_key, currentProgress, 100);
 
-            PGPPublicKeyEncryptedData pbe = null;
-            PGPSecretKey secretKey = null;
+            ArrayList<PGPPublicKeyEncryptedData> encDataList =
+                    new ArrayList<PGPPublicKeyEncryptedData>();
             Iterator<?> it = enc.getEncryptedDataObjects();
-            // find secret key
             while (it.hasNext()) {
                 Object obj = it.next();
                 if (obj instanceof PGPPublicKeyEncryptedData) {
-                    PGPPublicKeyEncryptedData encData = (PGPPublicKeyEncryptedData) obj;
-                    secretKey = ProviderHelper.getPGPSecretKeyByKeyId(context, encData.getKeyID());
-                    if (secretKey != null) {
-                        // secret key exists in database
-
-                        // allow only a specific key for decryption?
-                        if (enforcedKeyId != 0) {
-                            // TODO: improve this code! get master key directly!
-                            PGPSecretKeyRing secretKeyRing = ProviderHelper.getPGPSecretKeyRingByKeyId(context, encData.getKeyID());
-                            long masterKeyId = PgpKeyHelper.getMasterKey(secretKeyRing).getKeyID();
-                            Log.d(Constants.TAG, "encData.getKeyID():" + encData.getKeyID());
-                            Log.d(Constants.TAG, "enforcedKeyId: " + enforcedKeyId);
-                            Log.d(Constants.TAG, "masterKeyId: " + masterKeyId);
-
-                            if (enforcedKeyId != masterKeyId) {
-                                throw new PgpGeneralException(context.getString(R.string.error_no_secret_key_found));
-                            }
-                        }
-
-                        pbe = encData;
-
-                        // if no passphrase was explicitly set try to get it from the cache service
-                        if (passphrase == null) {
-                            // returns "" if key has no passphrase
-                            passphrase = PassphraseCacheService.getCachedPassphrase(context, encData.getKeyID());
-
-                            // if passphrase was not cached, return here indicating that a passphrase is missing!
-                            if (passphrase == null) {
-                                returnData.setKeyPassphraseNeeded(true);
-                                return returnData;
-                            }
-                        }
+                    encDataList.add((PGPPublicKeyEncryptedData) obj);
+                }
+            }
 
-                        break;
+            // look up all recipients at once, unknown key ids are rejected without a query
+            long[] recipientKeyIds = new long[encDataList.size()];
+            for (int i = 0; i < recipientKeyIds.length; i++) {
+                recipientKeyIds[i] = encDataList.get(i).getKeyID();
+            }
+            PGPSecretKeyRing[] secretKeyRings =
+                    ProviderHelper.getPGPSecretKeyRingsByKeyIds(context, recipientKeyIds);
+
+            PGPPublicKeyEncryptedData pbe = null;
+            PGPSecretKey secretKey = null;
+            PGPSecretKeyRing secretKeyRing = null;
+            // find secret key
+            for (int i = 0; i < secretKeyRings.length; i++) {
+                if (secretKeyRings[i] == null) {
+                    continue;
+                }
+
+                // secret key exists in database
+                PGPPublicKeyEncryptedData encData = encDataList.get(i);
+                secretKey = secretKeyRings[i].getSecretKey(encData.getKeyID());
+                secretKeyRing = secretKeyRings[i];
+
+                // allow only a specific key for decryption?
+                if (enforcedKeyId != 0) {
+                    long masterKeyId = PgpKeyHelper.getMasterKey(secretKeyRings[i]).getKeyID();
+                    Log.d(Constants.TAG, "encData.getKeyID():" + encData.getKeyID());
+                    Log.d(Constants.TAG, "enforcedKeyId: " + enforcedKeyId);
+                    Log.d(Constants.TAG, "masterKeyId: " + masterKeyId);
+
+                    if (enforcedKeyId != masterKeyId) {
+                        throw new PgpGeneralException(context.getString(R.string.error_no_secret_key_found));
                     }
+                }
 
+                pbe = encData;
 
+                // if no passphrase was explicitly set try to get it from the cache service,
+                // not needed if the key has been unlocked before
+                if (passphrase == null
+                        && (unlockedKeys == null || !unlockedKeys.containsKey(encData.getKeyID()))) {
+                    // returns "" if key has no passphrase
+                    passphrase = PassphraseCacheService.getCachedPassphrase(context, encData.getKeyID());
+
+                    // if passphrase was not cached, return here indicating that a passphrase is missing!
+                    if (passphrase == null) {
+                        returnData.setKeyPassphraseNeeded(true);
+                        return returnData;
+                    }
                 }
+
+                break;
             }
 
             if (secretKey == null) {
@@ -335,18 +334,25 @@ public class PgpDecryptVerify {
 
             currentProgress += 5;
             updateProgress(R.string.progress_extracting_key, currentProgress, 100);
-            PGPPrivateKey privateKey;
-            try {
-                PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder()
-                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
-                                passphrase.toCharArray());
-                privateKey = secretKey.extractPrivateKey(keyDecryptor);
-            } catch (PGPException e) {
-                throw new PGPException(context.getString(R.string.error_wrong_passphrase));
+            PGPPrivateKey privateKey = null;
+            if (unlockedKeys != null) {
+                privateKey = unlockedKeys.get(secretKey.getKeyID());
             }
             if (privateKey == null) {
-                throw new PgpGeneralException(
-                        context.getString(R.string.error_could_not_extract_private_key));
+                try {
+                    privateKey = PassphraseCacheService.extractPrivateKey(context,
+                            PgpKeyHelper.getMasterKey(secretKeyRing).getKeyID(), secretKey,
+                            passphrase);
+                } catch (PGPException e) {
+                    throw new PGPException(context.getString(R.string.error_wrong_passphrase));
+                }
+                if (privateKey == null) {
+                    throw new PgpGeneralException(
+                            context.getString(R.string.error_could_not_extract_private_key));
+                }
+                if (unlockedKeys != null) {
+                    unlockedKeys.put(secretKey.getKeyID(), privateKey);
+                }
             }
             currentProgress += 5;
             updateProgress(R.string.progress_preparing_streams, currentProgress, 100);
@@ -383,10 +389,19 @@ public class PgpDecryptVerify {
 
             signatureResult = new OpenPgpSignatureResult();
             PGPOnePassSignatureList sigList = (PGPOnePassSignatureList) dataChunk;
+
+            // look up the keys of all signatures at once
+            long[] sigKeyIds = new long[sigList.size()];
+            for (int i = 0; i < sigKeyIds.length; ++i) {
+                sigKeyIds[i] = sigList.get(i).getKeyID();
+            }
+            PGPPublicKeyRing[] signKeyRings =
+                    ProviderHelper.getPGPPublicKeyRingsByKeyIds(context, sigKeyIds);
+
             for (int i = 0; i < sigList.size(); ++i) {
                 signature = sigList.get(i);
-                signatureKey = ProviderHelper
-                        .getPGPPublicKeyByKeyId(context, signature.getKeyID());
+                signatureKey = (signKeyRings[i] == null) ? null
+                        : signKeyRings[i].getPublicKey(signature.getKeyID());
                 if (signatureKeyId == 0) {
                     signatureKeyId = signature.getKeyID();
                 }
@@ -395,12 +410,8 @@ public class PgpDecryptVerify {
                 } else {
                     signatureIndex = i;
                     signatureKeyId = signature.getKeyID();
-                    String userId = null;
-                    PGPPublicKeyRing signKeyRing = ProviderHelper.getPGPPublicKeyRingByKeyId(
-                            context, signatureKeyId);
-                    if (signKeyRing != null) {
-                        userId = PgpKeyHelper.getMainUserId(PgpKeyHelper.getMasterKey(signKeyRing));
-                    }
+                    String userId = PgpKeyHelper.getMainUserId(
+                            PgpKeyHelper.getMasterKey(signKeyRings[i]));
                     signatureResult.setUserId(userId);
                     break;
                 }
@@ -426,11 +437,16 @@ public class PgpDecryptVerify {
         }
 
         if (dataChunk instanceof PGPLiteralData) {
-            updateProgress(R.string.progress_decrypting, currentProgress, 100);
+            if (data.getSize() > 0) {
+                updateProgress(R.string.progress_decrypting, currentProgress, 100);
+            } else {
+                // size of input is unknown, show indeterminate progress
+                updateProgress(R.string.progress_decrypting, 0, 0);
+            }
 
             PGPLiteralData literalData = (PGPLiteralData) dataChunk;
 
-            byte[] buffer = new byte[1 << 16];
+            byte[] buffer = new byte[Constants.DATA_BUFFER_SIZE];
             InputStream dataIn = literalData.getInputStream();
 
             int startProgress = currentProgress;
@@ -460,6 +476,10 @@ public class PgpDecryptVerify {
                 // unknown size, but try to at least have a moving, slowing down progress bar
 //                currentProgress = startProgress + (endProgress - startProgress) * progress
 //                        / (progress + 100000);
+                if (data.getSize() <= 0) {
+                    // unknown size, progress stays indeterminate
+                    continue;
+                }
                 if (data.getSize() - startPos == 0) {
                     currentProgress = endProgress;
                 } else {
@@ -533,7 +553,13 @@ public class PgpDecryptVerify {
         // cleartext signatures are never encrypted ;)
         signatureResult.setSignatureOnly(true);
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // the signature follows the text, so the text is hashed with all algorithms announced in
+        // the armor headers while it is passed on, only one line is kept in memory
+        PrehashedContentVerifierBuilderProvider verifierProvider =
+                new PrehashedContentVerifierBuilderProvider(getArmorHashAlgorithms(aIn),
+                        Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        CanonicalTextOutputStream hashOut =
+                new CanonicalTextOutputStream(verifierProvider.getOutputStream(), true);
 
         updateProgress(R.string.progress_done, 0, 100);
 
@@ -541,21 +567,14 @@ public class PgpDecryptVerify {
         int lookAhead = readInputLine(lineOut, aIn);
         byte[] lineSep = getLineSeparator();
 
-        byte[] line = lineOut.toByteArray();
-        out.write(line, 0, getLengthWithoutSeparator(line));
-        out.write(lineSep);
+        writeClearTextLine(lineOut.toByteArray(), lineSep, hashOut);
 
         while (lookAhead != -1 && aIn.isClearText()) {
             lookAhead = readInputLine(lineOut, lookAhead, aIn);
-            line = lineOut.toByteArray();
-            out.write(line, 0, getLengthWithoutSeparator(line));
-            out.write(lineSep);
+            writeClearTextLine(lineOut.toByteArray(), lineSep, hashOut);
         }
 
-        out.close();
-
-        byte[] clearText = out.toByteArray();
-        outStream.write(clearText);
+        hashOut.close();
 
         updateProgress(R.string.progress_processing_signature, 60, 100);
         PGPObjectFactory pgpFact = new PGPObjectFactory(aIn);
@@ -564,12 +583,21 @@ public class PgpDecryptVerify {
         if (sigList == null) {
             throw new PgpGeneralException(context.getString(R.string.error_corrupt_data));
         }
+        // look up the keys of all signatures at once
+        long[] sigKeyIds = new long[sigList.size()];
+        for (int i = 0; i < sigKeyIds.length; ++i) {
+            sigKeyIds[i] = sigList.get(i).getKeyID();
+        }
+        PGPPublicKeyRing[] signKeyRings =
+                ProviderHelper.getPGPPublicKeyRingsByKeyIds(context, sigKeyIds);
+
         PGPSignature signature = null;
         long signatureKeyId = 0;
         PGPPublicKey signatureKey = null;
         for (int i = 0; i < sigList.size(); ++i) {
             signature = sigList.get(i);
-            signatureKey = ProviderHelper.getPGPPublicKeyByKeyId(context, signature.getKeyID());
+            signatureKey = (signKeyRings[i] == null) ? null
+                    : signKeyRings[i].getPublicKey(signature.getKeyID());
             if (signatureKeyId == 0) {
                 signatureKeyId = signature.getKeyID();
             }
@@ -578,12 +606,8 @@ public class PgpDecryptVerify {
                 signature = null;
             } else {
                 signatureKeyId = signature.getKeyID();
-                String userId = null;
-                PGPPublicKeyRing signKeyRing = ProviderHelper.getPGPPublicKeyRingByKeyId(context,
-                        signatureKeyId);
-                if (signKeyRing != null) {
-                    userId = PgpKeyHelper.getMainUserId(PgpKeyHelper.getMasterKey(signKeyRing));
-                }
+                String userId = PgpKeyHelper.getMainUserId(
+                        PgpKeyHelper.getMasterKey(signKeyRings[i]));
                 signatureResult.setUserId(userId);
                 break;
             }
@@ -599,27 +623,17 @@ public class PgpDecryptVerify {
             return returnData;
         }
 
-        JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                new JcaPGPContentVerifierBuilderProvider()
-                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-
-        signature.init(contentVerifierBuilderProvider, signatureKey);
-
-        InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
-
-        lookAhead = readInputLine(lineOut, sigIn);
-
-        processLine(signature, lineOut.toByteArray());
-
-        if (lookAhead != -1) {
-            do {
-                lookAhead = readInputLine(lineOut, lookAhead, sigIn);
-
-                signature.update((byte) '\r');
-                signature.update((byte) '\n');
+        // the text has already been hashed, verify() only adds the signature trailer
+        try {
+            signature.init(verifierProvider, signatureKey);
+        } catch (PGPException e) {
+            // e.g. signed with a hash algorithm not announced in the armor headers
+            Log.e(Constants.TAG, "Signature could not be verified!", e);
+            signatureResult.setStatus(OpenPgpSignatureResult.SIGNATURE_ERROR);
+            returnData.setSignatureResult(signatureResult);
 
-                processLine(signature, lineOut.toByteArray());
-            } while (lookAhead != -1);
+            updateProgress(R.string.progress_done, 100, 100);
+            return returnData;
         }
 
         //Now check binding signatures
@@ -737,22 +751,6 @@ public class PgpDecryptVerify {
         return validPrimaryKeyBinding;
     }
 
-    /**
-     * Mostly taken from ClearSignedFileProcessor in Bouncy Castle
-     *
-     * @param sig
-     * @param line
-     * @throws SignatureException
-     * @throws IOException
-     */
-    private static void processLine(PGPSignature sig, byte[] line)
-            throws SignatureException, IOException {
-        int length = getLengthWithoutWhiteSpace(line);
-        if (length > 0) {
-            sig.update(line, 0, length);
-        }
-    }
-
     private static int readInputLine(ByteArrayOutputStream bOut, InputStream fIn)
             throws IOException {
         bOut.reset();
@@ -804,32 +802,77 @@ public class PgpDecryptVerify {
         return lookAhead;
     }
 
-    private static int getLengthWithoutSeparator(byte[] line) {
-        int end = line.length - 1;
+    private void writeClearTextLine(byte[] line, byte[] lineSep, OutputStream hashOut)
+            throws IOException {
+        int length = getLengthWithoutSeparator(line);
+        outStream.write(line, 0, length);
+        outStream.write(lineSep);
+        hashOut.write(line, 0, length);
+        hashOut.write(lineSep);
+    }
 
-        while (end >= 0 && isLineEnding(line[end])) {
-            end--;
+    /**
+     * Hash algorithms of the "Hash" armor headers of a cleartext signed message, MD5 if there
+     * are none (RFC 4880, section 7)
+     */
+    private static int[] getArmorHashAlgorithms(ArmoredInputStream aIn) {
+        ArrayList<Integer> hashAlgorithms = new ArrayList<Integer>();
+        String[] headers = aIn.getArmorHeaders();
+        if (headers != null) {
+            for (String header : headers) {
+                if (!header.startsWith("Hash:")) {
+                    continue;
+                }
+                for (String name : header.substring("Hash:".length()).split(",")) {
+                    int hashAlgorithm = getHashAlgorithm(name.trim());
+                    if (hashAlgorithm != -1) {
+                        hashAlgorithms.add(hashAlgorithm);
+                    }
+                }
+            }
+        }
+        if (hashAlgorithms.isEmpty()) {
+            hashAlgorithms.add(HashAlgorithmTags.MD5);
         }
 
-        return end + 1;
+        int[] result = new int[hashAlgorithms.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = hashAlgorithms.get(i);
+        }
+        return result;
     }
 
-    private static boolean isLineEnding(byte b) {
-        return b == '\r' || b == '\n';
+    private static int getHashAlgorithm(String name) {
+        if (name.equals("MD5")) {
+            return HashAlgorithmTags.MD5;
+        } else if (name.equals("SHA1")) {
+            return HashAlgorithmTags.SHA1;
+        } else if (name.equals("RIPEMD160")) {
+            return HashAlgorithmTags.RIPEMD160;
+        } else if (name.equals("SHA224")) {
+            return HashAlgorithmTags.SHA224;
+        } else if (name.equals("SHA256")) {
+            return HashAlgorithmTags.SHA256;
+        } else if (name.equals("SHA384")) {
+            return HashAlgorithmTags.SHA384;
+        } else if (name.equals("SHA512")) {
+            return HashAlgorithmTags.SHA512;
+        }
+        return -1;
     }
 
-    private static int getLengthWithoutWhiteSpace(byte[] line) {
+    private static int getLengthWithoutSeparator(byte[] line) {
         int end = line.length - 1;
 
-        while (end >= 0 && isWhiteSpace(line[end])) {
+        while (end >= 0 && isLineEnding(line[end])) {
             end--;
         }
 
         return end + 1;
     }
 
-    private static boolean isWhiteSpace(byte b) {
-        return b == '\r' || b == '\n' || b == '\t' || b == ' ';
+    private static boolean isLineEnding(byte b) {
+        return b == '\r' || b == '\n';
     }
 
     private static byte[] getLineSeparator() {
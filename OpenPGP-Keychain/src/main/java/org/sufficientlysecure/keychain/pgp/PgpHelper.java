@@ -23,12 +23,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.security.SecureRandom;
-import java.util.Iterator;
 import java.util.regex.Pattern;
 
 import org.spongycastle.openpgp.PGPEncryptedDataList;
 import org.spongycastle.openpgp.PGPObjectFactory;
-import org.spongycastle.openpgp.PGPPublicKeyEncryptedData;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.spongycastle.openpgp.PGPSecretKey;
 import org.spongycastle.openpgp.PGPSecretKeyRing;
@@ -41,6 +39,7 @@ import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ProgressDialogUpdater;
+import org.sufficientlysecure.keychain.util.ThrottledProgressDialogUpdater;
 
 import android.content.Context;
 import android.content.pm.PackageInfo;
@@ -76,50 +75,30 @@ public class PgpHelper {
         return "OpenPGP Keychain v" + getVersion(context);
     }
 
-    public static long getDecryptionKeyId(Context context, InputStream inputStream)
-            throws PgpGeneralException, NoAsymmetricEncryptionException, IOException {
-        InputStream in = PGPUtil.getDecoderStream(inputStream);
-        PGPObjectFactory pgpF = new PGPObjectFactory(in);
-        PGPEncryptedDataList enc;
-        Object o = pgpF.nextObject();
-
-        // the first object might be a PGP marker packet.
-        if (o instanceof PGPEncryptedDataList) {
-            enc = (PGPEncryptedDataList) o;
-        } else {
-            enc = (PGPEncryptedDataList) pgpF.nextObject();
+    /**
+     * @return id of the first recipient key we have the secret key for, Id.key.none if there is no
+     * such key
+     */
+    public static long getDecryptionKeyId(Context context, PgpMessageHeader header)
+            throws PgpGeneralException, NoAsymmetricEncryptionException {
+        if (!header.isEncrypted()) {
+            throw new PgpGeneralException(context.getString(R.string.error_invalid_data));
         }
 
-        if (enc == null) {
-            throw new PgpGeneralException(context.getString(R.string.error_invalid_data));
+        if (!header.isAsymmetric()) {
+            throw new NoAsymmetricEncryptionException();
         }
 
         // TODO: currently we always only look at the first known key
         // find the secret key
-        PGPSecretKey secretKey = null;
-        Iterator<?> it = enc.getEncryptedDataObjects();
-        boolean gotAsymmetricEncryption = false;
-        while (it.hasNext()) {
-            Object obj = it.next();
-            if (obj instanceof PGPPublicKeyEncryptedData) {
-                gotAsymmetricEncryption = true;
-                PGPPublicKeyEncryptedData pbe = (PGPPublicKeyEncryptedData) obj;
-                secretKey = ProviderHelper.getPGPSecretKeyByKeyId(context, pbe.getKeyID());
-                if (secretKey != null) {
-                    break;
-                }
+        for (long keyId : header.getRecipientKeyIds()) {
+            PGPSecretKey secretKey = ProviderHelper.getPGPSecretKeyByKeyId(context, keyId);
+            if (secretKey != null) {
+                return secretKey.getKeyID();
             }
         }
 
-        if (!gotAsymmetricEncryption) {
-            throw new NoAsymmetricEncryptionException();
-        }
-
-        if (secretKey == null) {
-            return Id.key.none;
-        }
-
-        return secretKey.getKeyID();
+        return Id.key.none;
     }
 
     public static int getStreamContent(Context context, InputStream inStream) throws IOException {
@@ -167,24 +146,6 @@ public class PgpHelper {
         return result;
     }
 
-    /**
-     * Go once through stream to get length of stream. The length is later used to display progress
-     * when encrypting/decrypting
-     * 
-     * @param in
-     * @return
-     * @throws IOException
-     */
-    public static long getLengthOfStream(InputStream in) throws IOException {
-        long size = 0;
-        long n = 0;
-        byte dummy[] = new byte[0x10000];
-        while ((n = in.read(dummy)) > 0) {
-            size += n;
-        }
-        return size;
-    }
-
     /**
      * Deletes file securely by overwriting it with random data before deleting it.
      * 
@@ -205,10 +166,14 @@ public class PgpHelper {
         raf.getFilePointer();
         byte[] data = new byte[1 << 16];
         int pos = 0;
-        String msg = context.getString(R.string.progress_deleting_securely, file.getName());
+        progress = ThrottledProgressDialogUpdater.wrap(progress);
+        if (progress != null) {
+            progress.setProgress(context.getString(R.string.progress_deleting_securely,
+                    file.getName()), 0, 100);
+        }
         while (pos < length) {
             if (progress != null)
-                progress.setProgress(msg, (int) (100 * pos / length), 100);
+                progress.setProgress((int) (100 * pos / length), 100);
             random.nextBytes(data);
             raf.write(data);
             pos += data.length;
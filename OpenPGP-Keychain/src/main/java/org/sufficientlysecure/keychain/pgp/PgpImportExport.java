@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
 import org.spongycastle.bcpg.ArmoredOutputStream;
@@ -50,19 +51,23 @@ import org.sufficientlysecure.keychain.util.KeyServer.AddKeyException;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.PositionAwareInputStream;
 import org.sufficientlysecure.keychain.util.ProgressDialogUpdater;
+import org.sufficientlysecure.keychain.util.ThrottledProgressDialogUpdater;
 
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Environment;
 
 public class PgpImportExport {
+    /** Number of keyrings stored in a single transaction by streaming imports */
+    private static final int IMPORT_BATCH_SIZE = 100;
+
     private Context mContext;
     private ProgressDialogUpdater mProgress;
 
     public PgpImportExport(Context context, ProgressDialogUpdater progress) {
         super();
         this.mContext = context;
-        this.mProgress = progress;
+        this.mProgress = ThrottledProgressDialogUpdater.wrap(progress);
     }
 
     public void updateProgress(int message, int current, int total) {
@@ -221,50 +226,31 @@ public class PgpImportExport {
     }
 
     /**
-     * TODO: implement Id.return_value.updated as status when key already existed
+     * Stores the keyring, returns Id.return_value.updated if its public keyring already existed
      */
-    @SuppressWarnings("unchecked")
     public int storeKeyRingInCache(PGPKeyRing keyring) {
         int status = Integer.MIN_VALUE; // out of bounds value (Id.return_value.*)
         try {
-            if (keyring instanceof PGPSecretKeyRing) {
-                PGPSecretKeyRing secretKeyRing = (PGPSecretKeyRing) keyring;
-                boolean save = true;
-
-                for (PGPSecretKey testSecretKey : new IterableIterator<PGPSecretKey>(
-                        secretKeyRing.getSecretKeys())) {
-                    if (!testSecretKey.isMasterKey()) {
-                        if (PgpKeyHelper.isSecretKeyPrivateEmpty(testSecretKey)) {
-                            // this is bad, something is very wrong...
-                            save = false;
-                            status = Id.return_value.bad;
-                        }
-                    }
-                }
+            PreparedKeyRing prepared = prepareKeyRing(keyring);
 
-                if (save) {
-                    ProviderHelper.saveKeyRing(mContext, secretKeyRing);
-                    // TODO: preserve certifications
-                    // (http://osdir.com/ml/encryption.bouncy-castle.devel/2007-01/msg00054.html ?)
-                    PGPPublicKeyRing newPubRing = null;
-                    for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(
-                            secretKeyRing.getPublicKeys())) {
-                        if (newPubRing == null) {
-                            newPubRing = new PGPPublicKeyRing(key.getEncoded(),
-                                    new JcaKeyFingerprintCalculator());
-                        }
-                        newPubRing = PGPPublicKeyRing.insertPublicKey(newPubRing, key);
-                    }
-                    if (newPubRing != null)
-                        ProviderHelper.saveKeyRing(mContext, newPubRing);
-                    // TODO: remove status returns, use exceptions!
-                    status = Id.return_value.ok;
+            if (prepared.bad) {
+                status = Id.return_value.bad;
+            } else if (prepared.secretKeyRing != null || prepared.publicKeyRing != null) {
+                if (prepared.secretKeyRing != null) {
+                    ProviderHelper.saveKeyRing(mContext, prepared.secretKeyRing);
                 }
-            } else if (keyring instanceof PGPPublicKeyRing) {
-                PGPPublicKeyRing publicKeyRing = (PGPPublicKeyRing) keyring;
-                ProviderHelper.saveKeyRing(mContext, publicKeyRing);
                 // TODO: remove status returns, use exceptions!
                 status = Id.return_value.ok;
+                if (prepared.publicKeyRing != null) {
+                    ProviderHelper.SaveKeyRingResult result =
+                            ProviderHelper.saveKeyRing(mContext, prepared.publicKeyRing);
+                    Log.d(Constants.TAG, "Saved key ring: " + result);
+                    if (result.isFailed()) {
+                        status = Id.return_value.error;
+                    } else if (!result.isNew()) {
+                        status = Id.return_value.updated;
+                    }
+                }
             }
         } catch (IOException e) {
             status = Id.return_value.error;
@@ -273,4 +259,195 @@ public class PgpImportExport {
         return status;
     }
 
+    /**
+     * Imports all keyrings contained in the given data. Keyrings are parsed while reading and
+     * written in batches of IMPORT_BATCH_SIZE in the order of the data, so memory usage does not
+     * depend on the size of the data. Progress is reported by bytes read if the size is known.
+     *
+     * @param masterKeyIds only keyrings with one of these master key ids are imported, all if null
+     */
+    public Bundle importKeyRings(InputData inputData, long[] masterKeyIds)
+            throws PgpGeneralException, IOException {
+        Bundle returnData = new Bundle();
+
+        HashSet<Long> selectedIds = null;
+        if (masterKeyIds != null) {
+            selectedIds = new HashSet<Long>();
+            for (long masterKeyId : masterKeyIds) {
+                selectedIds.add(masterKeyId);
+            }
+        }
+
+        updateProgress(R.string.progress_importing, 0, 100);
+
+        ImportCounts counts = new ImportCounts();
+        ArrayList<PreparedKeyRing> batch = new ArrayList<PreparedKeyRing>();
+        long size = inputData.getSize();
+        int lastProgress = 0;
+
+        // need to have access to the bufferedInput, so we can reuse it for the possible
+        // PGPObject chunks after the first one, e.g. files with several consecutive ASCII
+        // armour blocks
+        BufferedInputStream bufferedInput = new BufferedInputStream(inputData.getInputStream());
+        try {
+            // read all available blocks... (asc files can contain many blocks with BEGIN END)
+            while (bufferedInput.available() > 0) {
+                InputStream in = PGPUtil.getDecoderStream(bufferedInput);
+                PGPObjectFactory objectFactory = new PGPObjectFactory(in);
+
+                // go through all objects in this block
+                Object obj;
+                while ((obj = objectFactory.nextObject()) != null) {
+                    if (obj instanceof PGPKeyRing) {
+                        PGPKeyRing keyring = (PGPKeyRing) obj;
+                        if (selectedIds == null
+                                || selectedIds.contains(keyring.getPublicKey().getKeyID())) {
+                            batch.add(prepareKeyRingOrBad(keyring));
+                        }
+                    } else {
+                        Log.e(Constants.TAG, "Object not recognized as PGPKeyRing!");
+                    }
+
+                    if (batch.size() >= IMPORT_BATCH_SIZE) {
+                        storePreparedKeyRings(batch, counts);
+                    }
+
+                    if (size > 0) {
+                        int progress = (int) (inputData.getStreamPosition() * 100 / size);
+                        if (progress != lastProgress) {
+                            updateProgress(progress, 100);
+                            lastProgress = progress;
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // the rest of the data can not be parsed, keep what has been read so far
+            Log.e(Constants.TAG, "Exception on parsing key file!", e);
+            ++counts.badKeys;
+        }
+        storePreparedKeyRings(batch, counts);
+
+        updateProgress(100, 100);
+
+        returnData.putInt(KeychainIntentService.RESULT_IMPORT_ADDED, counts.newKeys);
+        returnData.putInt(KeychainIntentService.RESULT_IMPORT_UPDATED, counts.oldKeys);
+        returnData.putInt(KeychainIntentService.RESULT_IMPORT_BAD, counts.badKeys);
+
+        return returnData;
+    }
+
+    /**
+     * Stores the given keyrings, all public keyrings in a single transaction, and clears the list
+     */
+    private void storePreparedKeyRings(ArrayList<PreparedKeyRing> batch, ImportCounts counts)
+            throws PgpGeneralException {
+        ArrayList<PGPPublicKeyRing> publicKeyRings = new ArrayList<PGPPublicKeyRing>();
+        try {
+            for (PreparedKeyRing prepared : batch) {
+                if (prepared.bad) {
+                    ++counts.badKeys;
+                    continue;
+                }
+                if (prepared.secretKeyRing != null) {
+                    ProviderHelper.saveKeyRing(mContext, prepared.secretKeyRing);
+                    if (prepared.publicKeyRing == null) {
+                        ++counts.newKeys;
+                    }
+                }
+                if (prepared.publicKeyRing != null) {
+                    publicKeyRings.add(prepared.publicKeyRing);
+                }
+            }
+
+            for (ProviderHelper.SaveKeyRingResult result : ProviderHelper.saveKeyRings(mContext,
+                    publicKeyRings)) {
+                if (result.isFailed()) {
+                    ++counts.badKeys;
+                } else if (result.isNew()) {
+                    ++counts.newKeys;
+                } else {
+                    ++counts.oldKeys;
+                }
+            }
+        } catch (IOException e) {
+            throw new PgpGeneralException(mContext.getString(R.string.error_saving_keys));
+        }
+
+        batch.clear();
+    }
+
+    /**
+     * Checks a keyring before storing it, for secret keyrings the corresponding public keyring is
+     * created
+     */
+    @SuppressWarnings("unchecked")
+    private static PreparedKeyRing prepareKeyRing(PGPKeyRing keyring) throws IOException {
+        PreparedKeyRing prepared = new PreparedKeyRing();
+
+        if (keyring instanceof PGPSecretKeyRing) {
+            PGPSecretKeyRing secretKeyRing = (PGPSecretKeyRing) keyring;
+
+            for (PGPSecretKey testSecretKey : new IterableIterator<PGPSecretKey>(
+                    secretKeyRing.getSecretKeys())) {
+                if (!testSecretKey.isMasterKey()) {
+                    if (PgpKeyHelper.isSecretKeyPrivateEmpty(testSecretKey)) {
+                        // this is bad, something is very wrong...
+                        prepared.bad = true;
+                        return prepared;
+                    }
+                }
+            }
+
+            prepared.secretKeyRing = secretKeyRing;
+
+            // TODO: preserve certifications
+            // (http://osdir.com/ml/encryption.bouncy-castle.devel/2007-01/msg00054.html ?)
+            PGPPublicKeyRing newPubRing = null;
+            for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(
+                    secretKeyRing.getPublicKeys())) {
+                if (newPubRing == null) {
+                    newPubRing = new PGPPublicKeyRing(key.getEncoded(),
+                            new JcaKeyFingerprintCalculator());
+                }
+                newPubRing = PGPPublicKeyRing.insertPublicKey(newPubRing, key);
+            }
+            prepared.publicKeyRing = newPubRing;
+        } else if (keyring instanceof PGPPublicKeyRing) {
+            prepared.publicKeyRing = (PGPPublicKeyRing) keyring;
+        }
+
+        return prepared;
+    }
+
+    /**
+     * Like {@link #prepareKeyRing(PGPKeyRing)}, but returns a keyring marked as bad if it can not
+     * be encoded
+     */
+    private static PreparedKeyRing prepareKeyRingOrBad(PGPKeyRing keyring) {
+        try {
+            return prepareKeyRing(keyring);
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Keyring could not be prepared for import!", e);
+            PreparedKeyRing prepared = new PreparedKeyRing();
+            prepared.bad = true;
+            return prepared;
+        }
+    }
+
+    /**
+     * Keyring checked by {@link #prepareKeyRing(PGPKeyRing)}, ready to be stored
+     */
+    private static class PreparedKeyRing {
+        PGPSecretKeyRing secretKeyRing;
+        PGPPublicKeyRing publicKeyRing;
+        boolean bad = false;
+    }
+
+    private static class ImportCounts {
+        int newKeys = 0;
+        int oldKeys = 0;
+        int badKeys = 0;
+    }
+
 }
@@ -235,6 +235,30 @@ public class PgpKeyHelper {
         return encryptKeys.get(0);
     }
 
+    /**
+     * Like getEncryptPublicKey, but the key rings of all master key ids are retrieved at once
+     *
+     * @return encryption keys in the order of the master key ids, null if there is none
+     */
+    public static PGPPublicKey[] getEncryptPublicKeys(Context context, long[] masterKeyIds) {
+        PGPPublicKeyRing[] keyRings = ProviderHelper.getPGPPublicKeyRingsByMasterKeyIds(context,
+                masterKeyIds);
+        PGPPublicKey[] keys = new PGPPublicKey[masterKeyIds.length];
+        for (int i = 0; i < keyRings.length; i++) {
+            if (keyRings[i] == null) {
+                Log.e(Constants.TAG, "keyRing of " + masterKeyIds[i] + " is null!");
+                continue;
+            }
+            Vector<PGPPublicKey> encryptKeys = getUsableEncryptKeys(keyRings[i]);
+            if (encryptKeys.size() == 0) {
+                Log.e(Constants.TAG, "encryptKeys of " + masterKeyIds[i] + " is null!");
+                continue;
+            }
+            keys[i] = encryptKeys.get(0);
+        }
+        return keys;
+    }
+
     public static PGPSecretKey getCertificationKey(Context context, long masterKeyId) {
         PGPSecretKeyRing keyRing = ProviderHelper.getPGPSecretKeyRingByMasterKeyId(context,
                 masterKeyId);
@@ -67,6 +67,7 @@ import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Primes;
 import org.sufficientlysecure.keychain.util.ProgressDialogUpdater;
+import org.sufficientlysecure.keychain.util.ThrottledProgressDialogUpdater;
 
 import android.content.Context;
 
@@ -87,7 +88,7 @@ public class PgpKeyOperation {
     public PgpKeyOperation(Context context, ProgressDialogUpdater progress) {
         super();
         this.mContext = context;
-        this.mProgress = progress;
+        this.mProgress = ThrottledProgressDialogUpdater.wrap(progress);
     }
 
     public void updateProgress(int message, int current, int total) {
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.bcpg.ArmoredInputStream;
+import org.spongycastle.openpgp.PGPEncryptedDataList;
+import org.spongycastle.openpgp.PGPMarker;
+import org.spongycastle.openpgp.PGPObjectFactory;
+import org.spongycastle.openpgp.PGPPBEEncryptedData;
+import org.spongycastle.openpgp.PGPPublicKeyEncryptedData;
+import org.spongycastle.openpgp.PGPUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Information from the leading packets of a message, read in a single pass: the kind of armor,
+ * the key ids of the recipients and whether it can be decrypted with a passphrase.
+ *
+ * Only the packets in front of the encrypted data are parsed, the encrypted data itself is not
+ * read.
+ */
+public class PgpMessageHeader {
+    public static final int ARMOR_NONE = 0;
+    public static final int ARMOR_MESSAGE = 1;
+    public static final int ARMOR_CLEARTEXT = 2;
+
+    private int mArmorType = ARMOR_NONE;
+    private boolean mEncrypted = false;
+    private boolean mSymmetric = false;
+    private long[] mRecipientKeyIds = new long[0];
+
+    private PgpMessageHeader() {
+    }
+
+    /**
+     * Reads the leading packets of the message. The input stream is not closed.
+     */
+    public static PgpMessageHeader read(InputStream inputStream) throws IOException {
+        PgpMessageHeader header = new PgpMessageHeader();
+
+        InputStream in = PGPUtil.getDecoderStream(inputStream);
+        if (in instanceof ArmoredInputStream) {
+            if (((ArmoredInputStream) in).isClearText()) {
+                // a cleartext signature, no packets before the signed text
+                header.mArmorType = ARMOR_CLEARTEXT;
+                return header;
+            }
+            header.mArmorType = ARMOR_MESSAGE;
+        }
+
+        PGPObjectFactory pgpF = new PGPObjectFactory(in);
+        Object o = pgpF.nextObject();
+        // the first object might be a PGP marker packet.
+        while (o instanceof PGPMarker) {
+            o = pgpF.nextObject();
+        }
+        if (!(o instanceof PGPEncryptedDataList)) {
+            // signed-only or literal data
+            return header;
+        }
+
+        header.mEncrypted = true;
+        ArrayList<Long> keyIds = new ArrayList<Long>();
+        Iterator<?> it = ((PGPEncryptedDataList) o).getEncryptedDataObjects();
+        while (it.hasNext()) {
+            Object obj = it.next();
+            if (obj instanceof PGPPublicKeyEncryptedData) {
+                keyIds.add(((PGPPublicKeyEncryptedData) obj).getKeyID());
+            } else if (obj instanceof PGPPBEEncryptedData) {
+                header.mSymmetric = true;
+            }
+        }
+        header.mRecipientKeyIds = new long[keyIds.size()];
+        for (int i = 0; i < keyIds.size(); i++) {
+            header.mRecipientKeyIds[i] = keyIds.get(i);
+        }
+
+        return header;
+    }
+
+    public int getArmorType() {
+        return mArmorType;
+    }
+
+    public boolean isEncrypted() {
+        return mEncrypted;
+    }
+
+    /**
+     * @return true if the message can be decrypted with a passphrase
+     */
+    public boolean isSymmetric() {
+        return mSymmetric;
+    }
+
+    public boolean isAsymmetric() {
+        return mRecipientKeyIds.length > 0;
+    }
+
+    /**
+     * @return key ids of all public key encrypted session keys, in order of the message
+     */
+    public long[] getRecipientKeyIds() {
+        return mRecipientKeyIds;
+    }
+}
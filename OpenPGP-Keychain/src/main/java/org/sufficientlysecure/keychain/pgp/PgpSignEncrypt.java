@@ -34,29 +34,29 @@ import org.spongycastle.openpgp.PGPSignature;
 import org.spongycastle.openpgp.PGPSignatureGenerator;
 import org.spongycastle.openpgp.PGPSignatureSubpacketGenerator;
 import org.spongycastle.openpgp.PGPV3SignatureGenerator;
-import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePBEKeyEncryptionMethodGenerator;
-import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
-import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.PipelineOutputStream;
 import org.sufficientlysecure.keychain.util.ProgressDialogUpdater;
+import org.sufficientlysecure.keychain.util.ThrottledProgressDialogUpdater;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Date;
 
 /**
@@ -77,6 +77,9 @@ public class PgpSignEncrypt {
     private int signatureHashAlgorithm;
     private boolean signatureForceV3;
     private String signaturePassphrase;
+    private HashMap<Long, PGPPrivateKey> unlockedKeys;
+    private boolean binaryInput;
+    private boolean pipelined;
 
     private PgpSignEncrypt(Builder builder) {
         // private Constructor can only be called from Builder
@@ -84,7 +87,7 @@ public class PgpSignEncrypt {
         this.data = builder.data;
         this.outStream = builder.outStream;
 
-        this.progress = builder.progress;
+        this.progress = ThrottledProgressDialogUpdater.wrap(builder.progress);
         this.enableAsciiArmorOutput = builder.enableAsciiArmorOutput;
         this.compressionId = builder.compressionId;
         this.encryptionKeyIds = builder.encryptionKeyIds;
@@ -94,6 +97,9 @@ public class PgpSignEncrypt {
         this.signatureHashAlgorithm = builder.signatureHashAlgorithm;
         this.signatureForceV3 = builder.signatureForceV3;
         this.signaturePassphrase = builder.signaturePassphrase;
+        this.unlockedKeys = builder.unlockedKeys;
+        this.binaryInput = builder.binaryInput;
+        this.pipelined = builder.pipelined;
     }
 
     public static class Builder {
@@ -113,6 +119,9 @@ public class PgpSignEncrypt {
         private int signatureHashAlgorithm = 0;
         private boolean signatureForceV3 = false;
         private String signaturePassphrase = null;
+        private HashMap<Long, PGPPrivateKey> unlockedKeys = null;
+        private boolean binaryInput = false;
+        private boolean pipelined = false;
 
         public Builder(Context context, InputData data, OutputStream outStream) {
             this.context = context;
@@ -170,6 +179,34 @@ public class PgpSignEncrypt {
             return this;
         }
 
+        /**
+         * Private keys by key id, shared by several operations. The signing key is taken from
+         * here if it has been unlocked before, otherwise it is added after unlocking it.
+         */
+        public Builder unlockedKeys(HashMap<Long, PGPPrivateKey> unlockedKeys) {
+            this.unlockedKeys = unlockedKeys;
+            return this;
+        }
+
+        /**
+         * Input is binary data (e.g. a file), not text. Signatures are created over the raw bytes
+         * and sign-only never produces a cleartext signature.
+         */
+        public Builder binaryInput(boolean binaryInput) {
+            this.binaryInput = binaryInput;
+            return this;
+        }
+
+        /**
+         * Signature hashing, compression, encryption and ascii armoring run on separate threads,
+         * connected by bounded buffers. Faster for large inputs on devices with multiple cores.
+         * Not used for cleartext signatures.
+         */
+        public Builder pipelined(boolean pipelined) {
+            this.pipelined = pipelined;
+            return this;
+        }
+
         public PgpSignEncrypt build() {
             return new PgpSignEncrypt(this);
         }
@@ -200,18 +237,39 @@ public class PgpSignEncrypt {
     public void execute()
             throws IOException, PgpGeneralException, PGPException, NoSuchProviderException,
             NoSuchAlgorithmException, SignatureException {
+        ArrayList<PipelineOutputStream> stages = new ArrayList<PipelineOutputStream>();
+        try {
+            execute(stages);
+        } finally {
+            // stop the threads of stages not closed because of an error
+            for (PipelineOutputStream stage : stages) {
+                stage.abort();
+            }
+        }
+    }
+
+    private void execute(ArrayList<PipelineOutputStream> stages)
+            throws IOException, PgpGeneralException, PGPException, NoSuchProviderException,
+            NoSuchAlgorithmException, SignatureException {
 
         boolean enableSignature = signatureKeyId != Id.key.none;
         boolean enableEncryption = (encryptionKeyIds.length != 0 || encryptionPassphrase != null);
         boolean enableCompression = (enableEncryption && compressionId != Id.choice.compression.none);
+        boolean enableCleartextSignature = (enableAsciiArmorOutput && enableSignature
+                && !enableEncryption && !binaryInput);
 
         Log.d(Constants.TAG, "enableSignature:" + enableSignature
                 + "\nenableEncryption:" + enableEncryption
                 + "\nenableCompression:" + enableCompression
-                + "\nenableAsciiArmorOutput:" + enableAsciiArmorOutput);
+                + "\nenableAsciiArmorOutput:" + enableAsciiArmorOutput
+                + "\nbinaryInput:" + binaryInput);
+
+        if (!enableSignature && !enableEncryption) {
+            throw new PgpGeneralException("Neither signing nor encryption requested!");
+        }
 
         int signatureType;
-        if (enableAsciiArmorOutput && enableSignature && !enableEncryption && !enableCompression) {
+        if (enableCleartextSignature) {
             // for sign-only ascii text
             signatureType = PGPSignature.CANONICAL_TEXT_DOCUMENT;
         } else {
@@ -239,19 +297,26 @@ public class PgpSignEncrypt {
                 throw new PgpGeneralException(context.getString(R.string.error_signature_failed));
             }
 
-            if (signaturePassphrase == null) {
-                throw new PgpGeneralException(
-                        context.getString(R.string.error_no_signature_passphrase));
+            if (unlockedKeys != null) {
+                signaturePrivateKey = unlockedKeys.get(signingKey.getKeyID());
             }
+            if (signaturePrivateKey == null) {
+                if (signaturePassphrase == null) {
+                    throw new PgpGeneralException(
+                            context.getString(R.string.error_no_signature_passphrase));
+                }
 
-            updateProgress(R.string.progress_extracting_signature_key, 0, 100);
+                updateProgress(R.string.progress_extracting_signature_key, 0, 100);
 
-            PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
-                    Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(signaturePassphrase.toCharArray());
-            signaturePrivateKey = signingKey.extractPrivateKey(keyDecryptor);
-            if (signaturePrivateKey == null) {
-                throw new PgpGeneralException(
-                        context.getString(R.string.error_could_not_extract_private_key));
+                signaturePrivateKey = PassphraseCacheService.extractPrivateKey(context,
+                        signatureKeyId, signingKey, signaturePassphrase);
+                if (signaturePrivateKey == null) {
+                    throw new PgpGeneralException(
+                            context.getString(R.string.error_could_not_extract_private_key));
+                }
+                if (unlockedKeys != null) {
+                    unlockedKeys.put(signingKey.getKeyID(), signaturePrivateKey);
+                }
             }
         }
         updateProgress(R.string.progress_preparing_streams, 5, 100);
@@ -275,15 +340,10 @@ public class PgpSignEncrypt {
                         new JcePBEKeyEncryptionMethodGenerator(encryptionPassphrase.toCharArray());
                 cPk.addMethod(symmetricEncryptionGenerator);
             } else {
-                // Asymmetric encryption
-                for (long id : encryptionKeyIds) {
-                    PGPPublicKey key = PgpKeyHelper.getEncryptPublicKey(context, id);
-                    if (key != null) {
-                        JcePublicKeyKeyEncryptionMethodGenerator pubKeyEncryptionGenerator =
-                                new JcePublicKeyKeyEncryptionMethodGenerator(key);
-                        cPk.addMethod(pubKeyEncryptionGenerator);
-                    }
-                }
+                // Asymmetric encryption, the session key is encrypted for all recipients in
+                // parallel when the stream is opened
+                PGPPublicKey[] keys = PgpKeyHelper.getEncryptPublicKeys(context, encryptionKeyIds);
+                new ParallelKeyEncryptionMethods(keys).addTo(cPk);
             }
         }
 
@@ -313,19 +373,43 @@ public class PgpSignEncrypt {
         }
 
         PGPCompressedDataGenerator compressGen = null;
-        OutputStream pOut;
         OutputStream encryptionOut = null;
         BCPGOutputStream bcpgOut;
-        if (enableEncryption) {
-            /* actual encryption */
+        if (!enableCleartextSignature) {
+            /* encryption and/or one-pass signed message, input is processed as binary data */
 
-            encryptionOut = cPk.open(out, new byte[1 << 16]);
+            // in pipelined mode every stage writes to the next one from its own thread
+            OutputStream packetOut = out;
+            if (pipelined && enableAsciiArmorOutput) {
+                packetOut = addStage(stages, out, "armor");
+            }
 
-            if (enableCompression) {
-                compressGen = new PGPCompressedDataGenerator(compressionId);
-                bcpgOut = new BCPGOutputStream(compressGen.open(encryptionOut));
+            if (enableEncryption) {
+                encryptionOut = cPk.open(packetOut, new byte[1 << 16]);
+                OutputStream encryptionIn = pipelined
+                        ? addStage(stages, encryptionOut, "encryption") : encryptionOut;
+
+                if (enableCompression) {
+                    compressGen = new PGPCompressedDataGenerator(compressionId);
+                    OutputStream compressionIn = compressGen.open(encryptionIn);
+                    if (pipelined) {
+                        compressionIn = addStage(stages, compressionIn, "compression");
+                    }
+                    bcpgOut = new BCPGOutputStream(compressionIn);
+                } else {
+                    bcpgOut = new BCPGOutputStream(encryptionIn);
+                }
             } else {
-                bcpgOut = new BCPGOutputStream(encryptionOut);
+                // sign-only, packets are written directly on the output
+                bcpgOut = new BCPGOutputStream(packetOut);
+            }
+
+            OutputStream hashOut = null;
+            if (enableSignature) {
+                hashOut = new SignatureOutputStream(signatureGenerator, signatureV3Generator);
+                if (pipelined) {
+                    hashOut = addStage(stages, hashOut, "hashing");
+                }
             }
 
             if (enableSignature) {
@@ -336,36 +420,44 @@ public class PgpSignEncrypt {
                 }
             }
 
+            int progressMessage = enableEncryption
+                    ? R.string.progress_encrypting : R.string.progress_signing;
+
             PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
             // file name not needed, so empty string
-            pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY, "", new Date(),
+            OutputStream pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY, "", new Date(),
                     new byte[1 << 16]);
-            updateProgress(R.string.progress_encrypting, 20, 100);
+            if (data.getSize() > 0) {
+                updateProgress(progressMessage, 20, 100);
+            } else {
+                // size of input is unknown, show indeterminate progress
+                updateProgress(progressMessage, 0, 0);
+            }
 
             long progress = 0;
             int n;
-            byte[] buffer = new byte[1 << 16];
+            byte[] buffer = new byte[Constants.DATA_BUFFER_SIZE];
             InputStream in = data.getInputStream();
             while ((n = in.read(buffer)) > 0) {
                 pOut.write(buffer, 0, n);
 
                 // update signature buffer if signature is requested
-                if (enableSignature) {
-                    if (signatureForceV3) {
-                        signatureV3Generator.update(buffer, 0, n);
-                    } else {
-                        signatureGenerator.update(buffer, 0, n);
-                    }
+                if (hashOut != null) {
+                    hashOut.write(buffer, 0, n);
                 }
 
                 progress += n;
-                if (data.getSize() != 0) {
+                if (data.getSize() > 0) {
                     updateProgress((int) (20 + (95 - 20) * progress / data.getSize()), 100);
                 }
             }
 
             literalGen.close();
-        } else if (enableAsciiArmorOutput && enableSignature && !enableEncryption && !enableCompression) {
+            if (hashOut != null) {
+                // waits until all data has been hashed
+                hashOut.close();
+            }
+        } else {
             /* sign-only of ascii text */
 
             updateProgress(R.string.progress_signing, 40, 100);
@@ -373,58 +465,46 @@ public class PgpSignEncrypt {
             // write directly on armor output stream
             armorOut.beginClearText(signatureHashAlgorithm);
 
-            InputStream in = data.getInputStream();
-            final BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-
-            final byte[] newline = "\r\n".getBytes("UTF-8");
-
+            // canonicalized text goes to armor output and signature
+            CanonicalTextOutputStream textOut;
             if (signatureForceV3) {
-                processLine(reader.readLine(), armorOut, signatureV3Generator);
+                textOut = new CanonicalTextOutputStream(armorOut, true, signatureV3Generator);
             } else {
-                processLine(reader.readLine(), armorOut, signatureGenerator);
+                textOut = new CanonicalTextOutputStream(armorOut, true, signatureGenerator);
             }
 
-            while (true) {
-                String line = reader.readLine();
-
-                if (line == null) {
-                    armorOut.write(newline);
-                    break;
-                }
-
-                armorOut.write(newline);
-
-                // update signature buffer with input line
-                if (signatureForceV3) {
-                    signatureV3Generator.update(newline);
-                    processLine(line, armorOut, signatureV3Generator);
-                } else {
-                    signatureGenerator.update(newline);
-                    processLine(line, armorOut, signatureGenerator);
-                }
+            int n;
+            byte[] buffer = new byte[Constants.DATA_BUFFER_SIZE];
+            InputStream in = data.getInputStream();
+            while ((n = in.read(buffer)) > 0) {
+                textOut.write(buffer, 0, n);
             }
+            textOut.close();
+
+            // line ending of the last line is not signed
+            armorOut.write(new byte[]{'\r', '\n'});
 
             armorOut.endClearText();
 
-            pOut = new BCPGOutputStream(armorOut);
-        } else {
-            // TODO: implement sign-only for files!
-            pOut = null;
-            Log.e(Constants.TAG, "not supported!");
+            bcpgOut = new BCPGOutputStream(armorOut);
         }
 
         if (enableSignature) {
             updateProgress(R.string.progress_generating_signature, 95, 100);
             if (signatureForceV3) {
-                signatureV3Generator.generate().encode(pOut);
+                signatureV3Generator.generate().encode(bcpgOut);
             } else {
-                signatureGenerator.generate().encode(pOut);
+                signatureGenerator.generate().encode(bcpgOut);
             }
         }
 
         // closing outputs
         // NOTE: closing needs to be done in the correct order!
-        // TODO: closing bcpgOut and pOut???
+        // Stages are closed from the first to the last, each after all data has passed through
+        // it. This also closes their streams, closing these again below does nothing.
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            stages.get(i).close();
+        }
         if (enableEncryption) {
             if (enableCompression) {
                 compressGen.close();
@@ -442,8 +522,49 @@ public class PgpSignEncrypt {
         updateProgress(R.string.progress_done, 100, 100);
     }
 
+    private static PipelineOutputStream addStage(ArrayList<PipelineOutputStream> stages,
+                                                 OutputStream out, String name) {
+        PipelineOutputStream stage = new PipelineOutputStream(out, name);
+        stages.add(stage);
+        return stage;
+    }
+
+    /**
+     * Passes data written to it to the signature generator
+     */
+    private static class SignatureOutputStream extends OutputStream {
+        private final PGPSignatureGenerator mSignatureGenerator;
+        private final PGPV3SignatureGenerator mSignatureV3Generator;
+
+        SignatureOutputStream(PGPSignatureGenerator signatureGenerator,
+                              PGPV3SignatureGenerator signatureV3Generator) {
+            mSignatureGenerator = signatureGenerator;
+            mSignatureV3Generator = signatureV3Generator;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                if (mSignatureV3Generator != null) {
+                    mSignatureV3Generator.update(buffer, offset, length);
+                } else {
+                    mSignatureGenerator.update(buffer, offset, length);
+                }
+            } catch (SignatureException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+    }
+
     // TODO: merge this into execute method!
-    // TODO: allow binary input for this class
+    /**
+     * Generates a detached signature of the input
+     */
     public void generateSignature()
             throws PgpGeneralException, PGPException, IOException, NoSuchAlgorithmException,
             SignatureException {
@@ -472,9 +593,8 @@ public class PgpSignEncrypt {
             throw new PgpGeneralException(context.getString(R.string.error_no_signature_passphrase));
         }
 
-        PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
-                Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(signaturePassphrase.toCharArray());
-        PGPPrivateKey signaturePrivateKey = signingKey.extractPrivateKey(keyDecryptor);
+        PGPPrivateKey signaturePrivateKey = PassphraseCacheService.extractPrivateKey(context,
+                signatureKeyId, signingKey, signaturePassphrase);
         if (signaturePrivateKey == null) {
             throw new PgpGeneralException(
                     context.getString(R.string.error_could_not_extract_private_key));
@@ -484,9 +604,9 @@ public class PgpSignEncrypt {
         updateProgress(R.string.progress_preparing_signature, 30, 100);
 
         int type = PGPSignature.CANONICAL_TEXT_DOCUMENT;
-//        if (binary) {
-//            type = PGPSignature.BINARY_DOCUMENT;
-//        }
+        if (binaryInput) {
+            type = PGPSignature.BINARY_DOCUMENT;
+        }
 
         // content signer based on signing key algorithm and chosen hash algorithm
         JcaPGPContentSignerBuilder contentSignerBuilder = new JcaPGPContentSignerBuilder(signingKey
@@ -511,31 +631,38 @@ public class PgpSignEncrypt {
         updateProgress(R.string.progress_signing, 40, 100);
 
         InputStream inStream = data.getInputStream();
-//        if (binary) {
-//            byte[] buffer = new byte[1 << 16];
-//            int n = 0;
-//            while ((n = inStream.read(buffer)) > 0) {
-//                if (signatureForceV3) {
-//                    signatureV3Generator.update(buffer, 0, n);
-//                } else {
-//                    signatureGenerator.update(buffer, 0, n);
-//                }
-//            }
-//        } else {
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(inStream));
-        final byte[] newline = "\r\n".getBytes("UTF-8");
-
-        String line;
-        while ((line = reader.readLine()) != null) {
+        if (binaryInput) {
+            // hash input in large blocks, no line processing
+            long progress = 0;
+            int n;
+            byte[] buffer = new byte[Constants.DATA_BUFFER_SIZE];
+            while ((n = inStream.read(buffer)) > 0) {
+                if (signatureForceV3) {
+                    signatureV3Generator.update(buffer, 0, n);
+                } else {
+                    signatureGenerator.update(buffer, 0, n);
+                }
+
+                progress += n;
+                if (data.getSize() > 0) {
+                    updateProgress((int) (40 + (95 - 40) * progress / data.getSize()), 100);
+                }
+            }
+        } else {
+            CanonicalTextOutputStream textOut;
             if (signatureForceV3) {
-                processLine(line, null, signatureV3Generator);
-                signatureV3Generator.update(newline);
+                textOut = new CanonicalTextOutputStream(null, false, signatureV3Generator);
             } else {
-                processLine(line, null, signatureGenerator);
-                signatureGenerator.update(newline);
+                textOut = new CanonicalTextOutputStream(null, false, signatureGenerator);
+            }
+
+            int n;
+            byte[] buffer = new byte[Constants.DATA_BUFFER_SIZE];
+            while ((n = inStream.read(buffer)) > 0) {
+                textOut.write(buffer, 0, n);
             }
+            textOut.close();
         }
-//        }
 
         BCPGOutputStream bOut = new BCPGOutputStream(out);
         if (signatureForceV3) {
@@ -549,57 +676,4 @@ public class PgpSignEncrypt {
         updateProgress(R.string.progress_done, 100, 100);
     }
 
-
-    private static void processLine(final String pLine, final ArmoredOutputStream pArmoredOutput,
-                                    final PGPSignatureGenerator pSignatureGenerator)
-            throws IOException, SignatureException {
-
-        if (pLine == null) {
-            return;
-        }
-
-        final char[] chars = pLine.toCharArray();
-        int len = chars.length;
-
-        while (len > 0) {
-            if (!Character.isWhitespace(chars[len - 1])) {
-                break;
-            }
-            len--;
-        }
-
-        final byte[] data = pLine.substring(0, len).getBytes("UTF-8");
-
-        if (pArmoredOutput != null) {
-            pArmoredOutput.write(data);
-        }
-        pSignatureGenerator.update(data);
-    }
-
-    private static void processLine(final String pLine, final ArmoredOutputStream pArmoredOutput,
-                                    final PGPV3SignatureGenerator pSignatureGenerator)
-            throws IOException, SignatureException {
-
-        if (pLine == null) {
-            return;
-        }
-
-        final char[] chars = pLine.toCharArray();
-        int len = chars.length;
-
-        while (len > 0) {
-            if (!Character.isWhitespace(chars[len - 1])) {
-                break;
-            }
-            len--;
-        }
-
-        final byte[] data = pLine.substring(0, len).getBytes("UTF-8");
-
-        if (pArmoredOutput != null) {
-            pArmoredOutput.write(data);
-        }
-        pSignatureGenerator.update(data);
-    }
-
 }
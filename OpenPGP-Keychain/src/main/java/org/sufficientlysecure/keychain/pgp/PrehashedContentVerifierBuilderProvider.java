@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.asn1.ASN1Encoding;
+import org.spongycastle.asn1.ASN1ObjectIdentifier;
+import org.spongycastle.asn1.DERNull;
+import org.spongycastle.asn1.nist.NISTObjectIdentifiers;
+import org.spongycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.spongycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.spongycastle.asn1.teletrust.TeleTrusTObjectIdentifiers;
+import org.spongycastle.asn1.x509.AlgorithmIdentifier;
+import org.spongycastle.asn1.x509.DigestInfo;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.PublicKeyAlgorithmTags;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.operator.PGPContentVerifier;
+import org.spongycastle.openpgp.operator.PGPContentVerifierBuilder;
+import org.spongycastle.openpgp.operator.PGPContentVerifierBuilderProvider;
+import org.spongycastle.openpgp.operator.PGPDigestCalculator;
+import org.spongycastle.openpgp.operator.PGPDigestCalculatorProvider;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyConverter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.HashMap;
+
+/**
+ * Verifies signatures over data that has been hashed before the signature and its key were known.
+ *
+ * The signature of a cleartext signed message follows the text, but the armor header already
+ * announces the hash algorithms. The text is written to {@link #getOutputStream()} while it is
+ * read and only the digest is kept. PGPSignature.init() and verify() with this provider add the
+ * signature trailer to the digest and verify the signature over it.
+ *
+ * Every digest can only be verified once.
+ */
+public class PrehashedContentVerifierBuilderProvider implements PGPContentVerifierBuilderProvider {
+    private final String mProviderName;
+    private final HashMap<Integer, PGPDigestCalculator> mDigests =
+            new HashMap<Integer, PGPDigestCalculator>();
+
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            for (PGPDigestCalculator digest : mDigests.values()) {
+                digest.getOutputStream().write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            for (PGPDigestCalculator digest : mDigests.values()) {
+                digest.getOutputStream().write(buffer, offset, length);
+            }
+        }
+    };
+
+    /**
+     * @param hashAlgorithms hash algorithms the data is hashed with, one of them has to be used
+     *                       by the signature
+     */
+    public PrehashedContentVerifierBuilderProvider(int[] hashAlgorithms, String providerName)
+            throws PGPException {
+        mProviderName = providerName;
+
+        PGPDigestCalculatorProvider digestProvider = new JcaPGPDigestCalculatorProviderBuilder()
+                .setProvider(providerName).build();
+        for (int hashAlgorithm : hashAlgorithms) {
+            if (!mDigests.containsKey(hashAlgorithm)) {
+                mDigests.put(hashAlgorithm, digestProvider.get(hashAlgorithm));
+            }
+        }
+    }
+
+    /**
+     * @return stream the signed data is written to, it is hashed with all hash algorithms
+     */
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    @Override
+    public PGPContentVerifierBuilder get(final int keyAlgorithm, final int hashAlgorithm)
+            throws PGPException {
+        final PGPDigestCalculator digest = mDigests.get(hashAlgorithm);
+        if (digest == null) {
+            throw new PGPException("Data has not been hashed with hash algorithm "
+                    + hashAlgorithm + " of the signature!");
+        }
+
+        return new PGPContentVerifierBuilder() {
+            @Override
+            public PGPContentVerifier build(final PGPPublicKey publicKey) throws PGPException {
+                final PublicKey key = new JcaPGPKeyConverter().setProvider(mProviderName)
+                        .getPublicKey(publicKey);
+                final Signature signature = createRawSignature(keyAlgorithm);
+
+                return new PGPContentVerifier() {
+                    @Override
+                    public OutputStream getOutputStream() {
+                        return digest.getOutputStream();
+                    }
+
+                    @Override
+                    public int getHashAlgorithm() {
+                        return hashAlgorithm;
+                    }
+
+                    @Override
+                    public int getKeyAlgorithm() {
+                        return keyAlgorithm;
+                    }
+
+                    @Override
+                    public long getKeyID() {
+                        return publicKey.getKeyID();
+                    }
+
+                    @Override
+                    public boolean verify(byte[] expected) {
+                        try {
+                            byte[] hash = digest.getDigest();
+                            signature.initVerify(key);
+                            if (isRsa(keyAlgorithm)) {
+                                // PKCS#1 signatures are made over the DigestInfo structure
+                                DigestInfo digestInfo = new DigestInfo(new AlgorithmIdentifier(
+                                        getDigestOid(hashAlgorithm), DERNull.INSTANCE), hash);
+                                signature.update(digestInfo.getEncoded(ASN1Encoding.DER));
+                            } else {
+                                signature.update(hash);
+                            }
+                            return signature.verify(expected);
+                        } catch (GeneralSecurityException e) {
+                            throw new IllegalStateException("unable to verify signature: "
+                                    + e.getMessage());
+                        } catch (IOException e) {
+                            throw new IllegalStateException("unable to encode digest: "
+                                    + e.getMessage());
+                        } catch (PGPException e) {
+                            throw new IllegalStateException(e.getMessage());
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    private Signature createRawSignature(int keyAlgorithm) throws PGPException {
+        String algorithm;
+        switch (keyAlgorithm) {
+            case PublicKeyAlgorithmTags.RSA_GENERAL:
+            case PublicKeyAlgorithmTags.RSA_SIGN:
+                algorithm = "NONEwithRSA";
+                break;
+            case PublicKeyAlgorithmTags.DSA:
+                algorithm = "NONEwithDSA";
+                break;
+            case PublicKeyAlgorithmTags.ECDSA:
+                algorithm = "NONEwithECDSA";
+                break;
+            default:
+                throw new PGPException("Unsupported signature key algorithm " + keyAlgorithm);
+        }
+
+        try {
+            return Signature.getInstance(algorithm, mProviderName);
+        } catch (GeneralSecurityException e) {
+            throw new PGPException("Cannot create signature: " + e.getMessage(), e);
+        }
+    }
+
+    private static boolean isRsa(int keyAlgorithm) {
+        return keyAlgorithm == PublicKeyAlgorithmTags.RSA_GENERAL
+                || keyAlgorithm == PublicKeyAlgorithmTags.RSA_SIGN;
+    }
+
+    private static ASN1ObjectIdentifier getDigestOid(int hashAlgorithm) throws PGPException {
+        switch (hashAlgorithm) {
+            case HashAlgorithmTags.MD5:
+                return PKCSObjectIdentifiers.md5;
+            case HashAlgorithmTags.SHA1:
+                return OIWObjectIdentifiers.idSHA1;
+            case HashAlgorithmTags.RIPEMD160:
+                return TeleTrusTObjectIdentifiers.ripemd160;
+            case HashAlgorithmTags.SHA224:
+                return NISTObjectIdentifiers.id_sha224;
+            case HashAlgorithmTags.SHA256:
+                return NISTObjectIdentifiers.id_sha256;
+            case HashAlgorithmTags.SHA384:
+                return NISTObjectIdentifiers.id_sha384;
+            case HashAlgorithmTags.SHA512:
+                return NISTObjectIdentifiers.id_sha512;
+            default:
+                throw new PGPException("Unsupported hash algorithm " + hashAlgorithm);
+        }
+    }
+}
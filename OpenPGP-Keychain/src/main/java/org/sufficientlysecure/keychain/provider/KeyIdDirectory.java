@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.database.Cursor;
+
+/**
+ * Ids of all public or all secret keys in the database, as a set of primitive longs with open
+ * addressing. Used to reject unknown key ids, e.g. of other recipients of a message, without
+ * querying their key rings.
+ *
+ * The set is not changed after it has been built. It belongs to a generation of the key ring cache
+ * and is built again after the next write to the key ring tables. A key id missing from an
+ * outdated directory is looked up in the database before it is reported as unknown.
+ */
+public class KeyIdDirectory {
+    private static final long EMPTY = 0;
+
+    private final long mGeneration;
+    private final long[] mTable;
+    private final int mMask;
+    /** 0 marks empty slots in mTable, so this key id is kept separately */
+    private boolean mContainsZero = false;
+    private int mSize = 0;
+
+    private KeyIdDirectory(long generation, int expectedSize) {
+        mGeneration = generation;
+
+        // keep the table at most half full
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        mTable = new long[capacity];
+        mMask = capacity - 1;
+    }
+
+    /**
+     * @param cursor     rows with the key id in the given column
+     * @param generation generation of the key ring cache from before the query
+     */
+    public static KeyIdDirectory fromCursor(Cursor cursor, int keyIdColumn, long generation) {
+        KeyIdDirectory directory = new KeyIdDirectory(generation, cursor.getCount());
+        while (cursor.moveToNext()) {
+            directory.add(cursor.getLong(keyIdColumn));
+        }
+        return directory;
+    }
+
+    private void add(long keyId) {
+        if (keyId == EMPTY) {
+            if (!mContainsZero) {
+                mContainsZero = true;
+                mSize++;
+            }
+            return;
+        }
+
+        int i = hash(keyId) & mMask;
+        while (mTable[i] != EMPTY) {
+            if (mTable[i] == keyId) {
+                return;
+            }
+            i = (i + 1) & mMask;
+        }
+        mTable[i] = keyId;
+        mSize++;
+    }
+
+    public boolean contains(long keyId) {
+        if (keyId == EMPTY) {
+            return mContainsZero;
+        }
+
+        int i = hash(keyId) & mMask;
+        while (mTable[i] != EMPTY) {
+            if (mTable[i] == keyId) {
+                return true;
+            }
+            i = (i + 1) & mMask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getGeneration() {
+        return mGeneration;
+    }
+
+    private static int hash(long keyId) {
+        // key ids are random already, mix high and low bits to use both
+        long h = keyId * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
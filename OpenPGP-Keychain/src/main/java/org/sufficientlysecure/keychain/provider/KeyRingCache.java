@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.sufficientlysecure.keychain.util.IterableIterator;
+
+/**
+ * Bounded LRU cache of parsed key rings, indexed by master key id and by the ids of all their
+ * keys. Used by ProviderHelper to avoid parsing the same key ring blob again and again.
+ *
+ * Every write to the key ring tables clears the cache. A ring read from the database is only
+ * added if no write happened since the read started, see {@link #getGeneration()}.
+ */
+public class KeyRingCache {
+    private final int mMaxSize;
+
+    /** master key id -> key ring, in access order */
+    private final LinkedHashMap<Long, PGPKeyRing> mKeyRings;
+    /** key id of every key of a cached ring -> master key id */
+    private final HashMap<Long, Long> mMasterKeyIds = new HashMap<Long, Long>();
+
+    private long mGeneration = 0;
+    private long mHits = 0;
+    private long mMisses = 0;
+
+    public KeyRingCache(int maxSize) {
+        mMaxSize = maxSize;
+        mKeyRings = new LinkedHashMap<Long, PGPKeyRing>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, PGPKeyRing> eldest) {
+                if (size() > mMaxSize) {
+                    removeKeyIds(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized PGPKeyRing getByMasterKeyId(long masterKeyId) {
+        return count(mKeyRings.get(masterKeyId));
+    }
+
+    public synchronized PGPKeyRing getByKeyId(long keyId) {
+        Long masterKeyId = mMasterKeyIds.get(keyId);
+        if (masterKeyId == null) {
+            return count(null);
+        }
+        return count(mKeyRings.get(masterKeyId));
+    }
+
+    /**
+     * Adds a key ring read from the database
+     *
+     * @param generation value of {@link #getGeneration()} from before the ring was read
+     */
+    public synchronized void put(PGPKeyRing keyRing, long generation) {
+        if (keyRing == null || generation != mGeneration) {
+            // the database has been changed while reading, the ring may be outdated
+            return;
+        }
+
+        ArrayList<Long> keyIds = getKeyIds(keyRing);
+        long masterKeyId = keyIds.get(0);
+
+        PGPKeyRing old = mKeyRings.put(masterKeyId, keyRing);
+        if (old != null) {
+            removeKeyIds(old);
+        }
+        for (long keyId : keyIds) {
+            mMasterKeyIds.put(keyId, masterKeyId);
+        }
+    }
+
+    public synchronized void clear() {
+        mGeneration++;
+        mKeyRings.clear();
+        mMasterKeyIds.clear();
+    }
+
+    /**
+     * Returns a value that changes with every {@link #clear()}, needs to be fetched before reading
+     * a key ring that is put into this cache afterwards.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized int size() {
+        return mKeyRings.size();
+    }
+
+    private PGPKeyRing count(PGPKeyRing keyRing) {
+        if (keyRing != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return keyRing;
+    }
+
+    private void removeKeyIds(PGPKeyRing keyRing) {
+        for (long keyId : getKeyIds(keyRing)) {
+            mMasterKeyIds.remove(keyId);
+        }
+    }
+
+    /**
+     * @return ids of all keys in the ring, starting with the master key
+     */
+    @SuppressWarnings("unchecked")
+    private static ArrayList<Long> getKeyIds(PGPKeyRing keyRing) {
+        ArrayList<Long> keyIds = new ArrayList<Long>();
+        if (keyRing instanceof PGPSecretKeyRing) {
+            for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(
+                    ((PGPSecretKeyRing) keyRing).getSecretKeys())) {
+                keyIds.add(key.getKeyID());
+            }
+        } else {
+            for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(
+                    ((PGPPublicKeyRing) keyRing).getPublicKeys())) {
+                keyIds.add(key.getKeyID());
+            }
+        }
+        return keyIds;
+    }
+}
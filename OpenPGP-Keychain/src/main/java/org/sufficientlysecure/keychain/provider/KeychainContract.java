@@ -52,6 +52,7 @@ public class KeychainContract {
         String KEY_RING_ROW_ID = "key_ring_row_id"; // foreign key to key_rings._ID
         String USER_ID = "user_id"; // not a database id
         String RANK = "rank";
+        String EMAIL = "email"; // lower case email of the user id, for lookups
     }
 
     interface ApiAppsColumns {
@@ -83,6 +84,8 @@ public class KeychainContract {
     public static final String PATH_BY_KEY_ID = "key_id";
     public static final String PATH_BY_EMAILS = "emails";
     public static final String PATH_BY_LIKE_EMAIL = "like_email";
+    public static final String PATH_BY_SEARCH = "search";
+    public static final String PATH_VERSION = "version";
 
     public static final String PATH_USER_IDS = "user_ids";
     public static final String PATH_KEYS = "keys";
@@ -100,6 +103,9 @@ public class KeychainContract {
         /** Use if a single item is returned */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.thialfihar.apg.key_ring";
 
+        /** Column of {@link #buildVersionUri()} */
+        public static final String VERSION = "version";
+
         public static Uri buildPublicKeyRingsUri() {
             return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC).build();
         }
@@ -113,6 +119,9 @@ public class KeychainContract {
                     .appendPath(PATH_BY_MASTER_KEY_ID).appendPath(masterKeyId).build();
         }
 
+        /**
+         * @param keyId one key id or several comma separated key ids
+         */
         public static Uri buildPublicKeyRingsByKeyIdUri(String keyId) {
             return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC).appendPath(PATH_BY_KEY_ID)
                     .appendPath(keyId).build();
@@ -128,6 +137,11 @@ public class KeychainContract {
                     .appendPath(emails).build();
         }
 
+        public static Uri buildPublicKeyRingsBySearchUri(String query) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC).appendPath(PATH_BY_SEARCH)
+                    .appendPath(query).build();
+        }
+
         public static Uri buildSecretKeyRingsUri() {
             return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).build();
         }
@@ -141,6 +155,9 @@ public class KeychainContract {
                     .appendPath(PATH_BY_MASTER_KEY_ID).appendPath(masterKeyId).build();
         }
 
+        /**
+         * @param keyId one key id or several comma separated key ids
+         */
         public static Uri buildSecretKeyRingsByKeyIdUri(String keyId) {
             return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).appendPath(PATH_BY_KEY_ID)
                     .appendPath(keyId).build();
@@ -155,6 +172,19 @@ public class KeychainContract {
             return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).appendPath(PATH_BY_LIKE_EMAIL)
                     .appendPath(emails).build();
         }
+
+        public static Uri buildSecretKeyRingsBySearchUri(String query) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).appendPath(PATH_BY_SEARCH)
+                    .appendPath(query).build();
+        }
+
+        /**
+         * One row with the column {@link #VERSION}, a value that changes with every committed
+         * write to the key ring tables
+         */
+        public static Uri buildVersionUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_VERSION).build();
+        }
     }
 
     public static class Keys implements KeysColumns, BaseColumns {
@@ -167,6 +197,13 @@ public class KeychainContract {
         /** Use if a single item is returned */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.thialfihar.apg.key";
 
+        /**
+         * All public keys of all key rings
+         */
+        public static Uri buildPublicKeysUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC).appendPath(PATH_KEYS).build();
+        }
+
         public static Uri buildPublicKeysUri(String keyRingRowId) {
             return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC).appendPath(keyRingRowId)
                     .appendPath(PATH_KEYS).build();
@@ -177,6 +214,13 @@ public class KeychainContract {
                     .appendPath(PATH_KEYS).appendPath(keyRowId).build();
         }
 
+        /**
+         * All secret keys of all key rings
+         */
+        public static Uri buildSecretKeysUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).appendPath(PATH_KEYS).build();
+        }
+
         public static Uri buildSecretKeysUri(String keyRingRowId) {
             return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).appendPath(keyRingRowId)
                     .appendPath(PATH_KEYS).build();
@@ -226,6 +270,15 @@ public class KeychainContract {
                     .appendPath(PATH_USER_IDS).appendPath(userIdRowId).build();
         }
 
+        /**
+         * User ids of public key rings with one of the given comma separated emails. Only
+         * returns the columns EMAIL and KeyRings.MASTER_KEY_ID.
+         */
+        public static Uri buildPublicUserIdsByEmailsUri(String emails) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC).appendPath(PATH_BY_EMAILS)
+                    .appendPath(emails).appendPath(PATH_USER_IDS).build();
+        }
+
         public static Uri buildUserIdsUri(Uri keyRingUri) {
             return keyRingUri.buildUpon().appendPath(PATH_USER_IDS).build();
         }
@@ -24,20 +24,23 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserIdsColumns;
 import org.sufficientlysecure.keychain.util.Log;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
 
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "apg.db";
-    private static final int DATABASE_VERSION = 7;
+    private static final int DATABASE_VERSION = 10;
 
     public interface Tables {
         String KEY_RINGS = "key_rings";
         String KEYS = "keys";
         String USER_IDS = "user_ids";
         String API_APPS = "api_apps";
+        String USER_IDS_FTS = "user_ids_fts";
     }
 
     private static final String CREATE_KEY_RINGS = "CREATE TABLE IF NOT EXISTS " + Tables.KEY_RINGS
@@ -70,6 +73,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             + " (" + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
             + UserIdsColumns.USER_ID + " TEXT, "
             + UserIdsColumns.RANK + " INTEGER, "
+            + UserIdsColumns.EMAIL + " TEXT, "
             + UserIdsColumns.KEY_RING_ROW_ID + " INTEGER NOT NULL, FOREIGN KEY("
             + UserIdsColumns.KEY_RING_ROW_ID + ") REFERENCES " + Tables.KEY_RINGS + "("
             + BaseColumns._ID + ") ON DELETE CASCADE)";
@@ -83,6 +87,53 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             + ApiAppsColumns.HASH_ALORITHM + " INTEGER, "
             + ApiAppsColumns.COMPRESSION + " INTEGER)";
 
+    /*
+     * Indexes for the lookup columns used by KeychainProvider. key_rings are queried by type alone
+     * or by type and master key id, keys by key id and joined on key ring row id and rank, user
+     * ids are joined on key ring row id and rank.
+     */
+    private static final String CREATE_INDEX_KEY_RINGS_TYPE_MASTER_KEY_ID = "CREATE INDEX IF NOT EXISTS "
+            + Tables.KEY_RINGS + "_type_master_key_id_idx ON " + Tables.KEY_RINGS + " ("
+            + KeyRingsColumns.TYPE + ", " + KeyRingsColumns.MASTER_KEY_ID + ")";
+
+    private static final String CREATE_INDEX_KEYS_KEY_ID = "CREATE INDEX IF NOT EXISTS "
+            + Tables.KEYS + "_key_id_idx ON " + Tables.KEYS + " ("
+            + KeysColumns.KEY_ID + ", " + KeysColumns.TYPE + ", " + KeysColumns.KEY_RING_ROW_ID + ")";
+
+    private static final String CREATE_INDEX_KEYS_KEY_RING_ROW_ID = "CREATE INDEX IF NOT EXISTS "
+            + Tables.KEYS + "_key_ring_row_id_idx ON " + Tables.KEYS + " ("
+            + KeysColumns.KEY_RING_ROW_ID + ", " + KeysColumns.RANK + ")";
+
+    private static final String CREATE_INDEX_USER_IDS_KEY_RING_ROW_ID = "CREATE INDEX IF NOT EXISTS "
+            + Tables.USER_IDS + "_key_ring_row_id_idx ON " + Tables.USER_IDS + " ("
+            + UserIdsColumns.KEY_RING_ROW_ID + ", " + UserIdsColumns.RANK + ")";
+
+    // emails of user ids are looked up by the remote API to find keys of recipients
+    private static final String CREATE_INDEX_USER_IDS_EMAIL = "CREATE INDEX IF NOT EXISTS "
+            + Tables.USER_IDS + "_email_idx ON " + Tables.USER_IDS + " (" + UserIdsColumns.EMAIL + ")";
+
+    /*
+     * Full text index over user ids, used for searching and resolving emails. The docid of each
+     * row is the row id of the user id it was created from, triggers keep it in sync.
+     */
+    private static final String CREATE_USER_IDS_FTS = "CREATE VIRTUAL TABLE " + Tables.USER_IDS_FTS
+            + " USING fts3(" + UserIdsColumns.USER_ID + ")";
+
+    private static final String CREATE_TRIGGER_USER_IDS_FTS_INSERT = "CREATE TRIGGER IF NOT EXISTS "
+            + Tables.USER_IDS_FTS + "_insert AFTER INSERT ON " + Tables.USER_IDS + " BEGIN "
+            + "INSERT INTO " + Tables.USER_IDS_FTS + " (docid, " + UserIdsColumns.USER_ID + ") VALUES "
+            + "(new." + BaseColumns._ID + ", new." + UserIdsColumns.USER_ID + "); END";
+
+    private static final String CREATE_TRIGGER_USER_IDS_FTS_UPDATE = "CREATE TRIGGER IF NOT EXISTS "
+            + Tables.USER_IDS_FTS + "_update AFTER UPDATE ON " + Tables.USER_IDS + " BEGIN "
+            + "DELETE FROM " + Tables.USER_IDS_FTS + " WHERE docid = old." + BaseColumns._ID + "; "
+            + "INSERT INTO " + Tables.USER_IDS_FTS + " (docid, " + UserIdsColumns.USER_ID + ") VALUES "
+            + "(new." + BaseColumns._ID + ", new." + UserIdsColumns.USER_ID + "); END";
+
+    private static final String CREATE_TRIGGER_USER_IDS_FTS_DELETE = "CREATE TRIGGER IF NOT EXISTS "
+            + Tables.USER_IDS_FTS + "_delete AFTER DELETE ON " + Tables.USER_IDS + " BEGIN "
+            + "DELETE FROM " + Tables.USER_IDS_FTS + " WHERE docid = old." + BaseColumns._ID + "; END";
+
     KeychainDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
@@ -95,6 +146,43 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_KEYS);
         db.execSQL(CREATE_USER_IDS);
         db.execSQL(CREATE_API_APPS);
+
+        createIndexes(db);
+        db.execSQL(CREATE_INDEX_USER_IDS_EMAIL);
+        createUserIdsFts(db);
+    }
+
+    private static void createUserIdsFts(SQLiteDatabase db) {
+        db.execSQL(CREATE_USER_IDS_FTS);
+        db.execSQL(CREATE_TRIGGER_USER_IDS_FTS_INSERT);
+        db.execSQL(CREATE_TRIGGER_USER_IDS_FTS_UPDATE);
+        db.execSQL(CREATE_TRIGGER_USER_IDS_FTS_DELETE);
+    }
+
+    private static void createIndexes(SQLiteDatabase db) {
+        db.execSQL(CREATE_INDEX_KEY_RINGS_TYPE_MASTER_KEY_ID);
+        db.execSQL(CREATE_INDEX_KEYS_KEY_ID);
+        db.execSQL(CREATE_INDEX_KEYS_KEY_RING_ROW_ID);
+        db.execSQL(CREATE_INDEX_USER_IDS_KEY_RING_ROW_ID);
+    }
+
+    private static void fillUserIdEmails(SQLiteDatabase db) {
+        Cursor cursor = db.query(Tables.USER_IDS, new String[]{BaseColumns._ID,
+                UserIdsColumns.USER_ID}, null, null, null, null, null);
+        try {
+            ContentValues values = new ContentValues();
+            while (cursor.moveToNext()) {
+                String email = ProviderHelper.getEmailOfUserId(cursor.getString(1));
+                if (email == null) {
+                    continue;
+                }
+                values.put(UserIdsColumns.EMAIL, email);
+                db.update(Tables.USER_IDS, values, BaseColumns._ID + " = " + cursor.getLong(0),
+                        null);
+            }
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
@@ -134,6 +222,24 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     db.execSQL("ALTER TABLE " + Tables.KEYS + " ADD COLUMN " + KeysColumns.FINGERPRINT
                             + " BLOB;");
                     break;
+                case 7:
+                    // new indexes for key lookups and joins
+                    createIndexes(db);
+                    break;
+                case 8:
+                    // full text index over user ids, filled with the existing ones
+                    createUserIdsFts(db);
+                    db.execSQL("INSERT INTO " + Tables.USER_IDS_FTS + " (docid, "
+                            + UserIdsColumns.USER_ID + ") SELECT " + BaseColumns._ID + ", "
+                            + UserIdsColumns.USER_ID + " FROM " + Tables.USER_IDS);
+                    break;
+                case 9:
+                    // new column: email, filled from the existing user ids
+                    db.execSQL("ALTER TABLE " + Tables.USER_IDS + " ADD COLUMN "
+                            + UserIdsColumns.EMAIL + " TEXT;");
+                    fillUserIdEmails(db);
+                    db.execSQL(CREATE_INDEX_USER_IDS_EMAIL);
+                    break;
                 default:
                     break;
 
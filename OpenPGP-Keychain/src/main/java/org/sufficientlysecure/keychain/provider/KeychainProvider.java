@@ -17,8 +17,12 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
@@ -33,10 +37,14 @@ import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
@@ -57,12 +65,15 @@ public class KeychainProvider extends ContentProvider {
     private static final int PUBLIC_KEY_RING_BY_KEY_ID = 104;
     private static final int PUBLIC_KEY_RING_BY_EMAILS = 105;
     private static final int PUBLIC_KEY_RING_BY_LIKE_EMAIL = 106;
+    private static final int PUBLIC_KEY_RING_BY_SEARCH = 107;
 
     private static final int PUBLIC_KEY_RING_KEY = 111;
     private static final int PUBLIC_KEY_RING_KEY_BY_ROW_ID = 112;
+    private static final int PUBLIC_KEYS = 113;
 
     private static final int PUBLIC_KEY_RING_USER_ID = 121;
     private static final int PUBLIC_KEY_RING_USER_ID_BY_ROW_ID = 122;
+    private static final int PUBLIC_KEY_RING_USER_ID_BY_EMAILS = 123;
 
     private static final int SECRET_KEY_RING = 201;
     private static final int SECRET_KEY_RING_BY_ROW_ID = 202;
@@ -70,13 +81,17 @@ public class KeychainProvider extends ContentProvider {
     private static final int SECRET_KEY_RING_BY_KEY_ID = 204;
     private static final int SECRET_KEY_RING_BY_EMAILS = 205;
     private static final int SECRET_KEY_RING_BY_LIKE_EMAIL = 206;
+    private static final int SECRET_KEY_RING_BY_SEARCH = 207;
 
     private static final int SECRET_KEY_RING_KEY = 211;
     private static final int SECRET_KEY_RING_KEY_BY_ROW_ID = 212;
+    private static final int SECRET_KEYS = 213;
 
     private static final int SECRET_KEY_RING_USER_ID = 221;
     private static final int SECRET_KEY_RING_USER_ID_BY_ROW_ID = 222;
 
+    private static final int KEY_RINGS_VERSION = 231;
+
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_ROW_ID = 302;
     private static final int API_APPS_BY_PACKAGE_NAME = 303;
@@ -101,9 +116,10 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/public
          * key_rings/public/#
          * key_rings/public/master_key_id/_
-         * key_rings/public/key_id/_
+         * key_rings/public/key_id/_ (one or more comma separated key ids)
          * key_rings/public/emails/_
          * key_rings/public/like_email/_
+         * key_rings/public/search/_
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -125,6 +141,9 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_PUBLIC + "/" + KeychainContract.PATH_BY_LIKE_EMAIL + "/*",
                 PUBLIC_KEY_RING_BY_LIKE_EMAIL);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_PUBLIC + "/" + KeychainContract.PATH_BY_SEARCH + "/*",
+                PUBLIC_KEY_RING_BY_SEARCH);
 
         /**
          * public keys
@@ -132,6 +151,7 @@ public class KeychainProvider extends ContentProvider {
          * <pre>
          * key_rings/public/#/keys
          * key_rings/public/#/keys/#
+         * key_rings/public/keys
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -140,6 +160,8 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_PUBLIC + "/#/" + KeychainContract.PATH_KEYS + "/#",
                 PUBLIC_KEY_RING_KEY_BY_ROW_ID);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_PUBLIC + "/" + KeychainContract.PATH_KEYS, PUBLIC_KEYS);
 
         /**
          * public user ids
@@ -147,6 +169,7 @@ public class KeychainProvider extends ContentProvider {
          * <pre>
          * key_rings/public/#/user_ids
          * key_rings/public/#/user_ids/#
+         * key_rings/public/emails/_/user_ids
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -155,6 +178,9 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_PUBLIC + "/#/" + KeychainContract.PATH_USER_IDS + "/#",
                 PUBLIC_KEY_RING_USER_ID_BY_ROW_ID);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_PUBLIC + "/" + KeychainContract.PATH_BY_EMAILS + "/*/"
+                + KeychainContract.PATH_USER_IDS, PUBLIC_KEY_RING_USER_ID_BY_EMAILS);
 
         /**
          * secret key rings
@@ -163,9 +189,10 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/secret
          * key_rings/secret/#
          * key_rings/secret/master_key_id/_
-         * key_rings/secret/key_id/_
+         * key_rings/secret/key_id/_ (one or more comma separated key ids)
          * key_rings/secret/emails/_
          * key_rings/secret/like_email/_
+         * key_rings/secret/search/_
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -187,6 +214,9 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_SECRET + "/" + KeychainContract.PATH_BY_LIKE_EMAIL + "/*",
                 SECRET_KEY_RING_BY_LIKE_EMAIL);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_SECRET + "/" + KeychainContract.PATH_BY_SEARCH + "/*",
+                SECRET_KEY_RING_BY_SEARCH);
 
         /**
          * secret keys
@@ -194,6 +224,7 @@ public class KeychainProvider extends ContentProvider {
          * <pre>
          * key_rings/secret/#/keys
          * key_rings/secret/#/keys/#
+         * key_rings/secret/keys
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -202,6 +233,8 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_SECRET + "/#/" + KeychainContract.PATH_KEYS + "/#",
                 SECRET_KEY_RING_KEY_BY_ROW_ID);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_SECRET + "/" + KeychainContract.PATH_KEYS, SECRET_KEYS);
 
         /**
          * secret user ids
@@ -218,6 +251,16 @@ public class KeychainProvider extends ContentProvider {
                 + KeychainContract.PATH_SECRET + "/#/" + KeychainContract.PATH_USER_IDS + "/#",
                 SECRET_KEY_RING_USER_ID_BY_ROW_ID);
 
+        /**
+         * version of the key ring tables
+         *
+         * <pre>
+         * key_rings/version
+         * </pre>
+         */
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_VERSION, KEY_RINGS_VERSION);
+
         /**
          * API apps
          */
@@ -240,6 +283,25 @@ public class KeychainProvider extends ContentProvider {
 
     private KeychainDatabase mApgDatabase;
 
+    /**
+     * Version of the key ring tables, see {@link KeyRings#buildVersionUri()}. Starts with an id of
+     * this provider instance, so versions seen before a restart of the process never match again.
+     */
+    private static final String sVersionPrefix = UUID.randomUUID().toString() + ":";
+    private static final AtomicLong sKeyRingsVersion = new AtomicLong();
+
+    /**
+     * Changes recorded while a batch is applied on the current thread, null if no batch is in
+     * progress. Notifications and broadcasts for them are sent once the batch has been committed.
+     */
+    private final ThreadLocal<BatchChanges> mBatchChanges = new ThreadLocal<BatchChanges>();
+
+    private static class BatchChanges {
+        final HashSet<Uri> uris = new HashSet<Uri>();
+        final HashSet<Integer> keyTypes = new HashSet<Integer>();
+        boolean keyRingsChanged = false;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -260,9 +322,11 @@ public class KeychainProvider extends ContentProvider {
             case PUBLIC_KEY_RING:
             case PUBLIC_KEY_RING_BY_EMAILS:
             case PUBLIC_KEY_RING_BY_LIKE_EMAIL:
+            case PUBLIC_KEY_RING_BY_SEARCH:
             case SECRET_KEY_RING:
             case SECRET_KEY_RING_BY_EMAILS:
             case SECRET_KEY_RING_BY_LIKE_EMAIL:
+            case SECRET_KEY_RING_BY_SEARCH:
                 return KeyRings.CONTENT_TYPE;
 
             case PUBLIC_KEY_RING_BY_ROW_ID:
@@ -271,10 +335,13 @@ public class KeychainProvider extends ContentProvider {
             case SECRET_KEY_RING_BY_ROW_ID:
             case SECRET_KEY_RING_BY_MASTER_KEY_ID:
             case SECRET_KEY_RING_BY_KEY_ID:
+            case KEY_RINGS_VERSION:
                 return KeyRings.CONTENT_ITEM_TYPE;
 
             case PUBLIC_KEY_RING_KEY:
+            case PUBLIC_KEYS:
             case SECRET_KEY_RING_KEY:
+            case SECRET_KEYS:
                 return Keys.CONTENT_TYPE;
 
             case PUBLIC_KEY_RING_KEY_BY_ROW_ID:
@@ -282,6 +349,7 @@ public class KeychainProvider extends ContentProvider {
                 return Keys.CONTENT_ITEM_TYPE;
 
             case PUBLIC_KEY_RING_USER_ID:
+            case PUBLIC_KEY_RING_USER_ID_BY_EMAILS:
             case SECRET_KEY_RING_USER_ID:
                 return UserIds.CONTENT_TYPE;
 
@@ -316,10 +384,13 @@ public class KeychainProvider extends ContentProvider {
             case PUBLIC_KEY_RING_BY_KEY_ID:
             case PUBLIC_KEY_RING_BY_EMAILS:
             case PUBLIC_KEY_RING_BY_LIKE_EMAIL:
+            case PUBLIC_KEY_RING_BY_SEARCH:
             case PUBLIC_KEY_RING_KEY:
             case PUBLIC_KEY_RING_KEY_BY_ROW_ID:
+            case PUBLIC_KEYS:
             case PUBLIC_KEY_RING_USER_ID:
             case PUBLIC_KEY_RING_USER_ID_BY_ROW_ID:
+            case PUBLIC_KEY_RING_USER_ID_BY_EMAILS:
                 type = KeyTypes.PUBLIC;
                 break;
 
@@ -329,8 +400,10 @@ public class KeychainProvider extends ContentProvider {
             case SECRET_KEY_RING_BY_KEY_ID:
             case SECRET_KEY_RING_BY_EMAILS:
             case SECRET_KEY_RING_BY_LIKE_EMAIL:
+            case SECRET_KEY_RING_BY_SEARCH:
             case SECRET_KEY_RING_KEY:
             case SECRET_KEY_RING_KEY_BY_ROW_ID:
+            case SECRET_KEYS:
             case SECRET_KEY_RING_USER_ID:
             case SECRET_KEY_RING_USER_ID_BY_ROW_ID:
                 type = KeyTypes.SECRET;
@@ -441,6 +514,77 @@ public class KeychainProvider extends ContentProvider {
         return qb;
     }
 
+    /**
+     * Splits the given text into the same tokens as the simple tokenizer of the full text index
+     * over user ids does. Everything except ASCII letters and digits separates tokens, characters
+     * outside of ASCII are part of tokens.
+     */
+    private static ArrayList<String> getFtsTokens(String text) {
+        ArrayList<String> tokens = new ArrayList<String>();
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c >= 0x80) {
+                token.append(c);
+            } else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    /**
+     * Builds a MATCH expression for the full text index over user ids that finds user ids
+     * containing words starting with every token of the given text. Every token is quoted as a
+     * phrase of its own, so words like OR, AND, NOT or NEAR are searched for and not taken as
+     * operators.
+     *
+     * @return expression or null if the text contains no tokens
+     */
+    private static String buildFtsPrefixMatch(String text) {
+        ArrayList<String> tokens = getFtsTokens(text);
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        StringBuilder ftsMatch = new StringBuilder();
+        for (String token : tokens) {
+            if (ftsMatch.length() > 0) {
+                ftsMatch.append(' ');
+            }
+            ftsMatch.append('"').append(token).append("*\"");
+        }
+        return ftsMatch.toString();
+    }
+
+    /**
+     * Restricts a key ring query to key rings having a user id that is found by the given MATCH
+     * expression on the full text index and satisfies the given condition on the user_ids table
+     * aliased as tmp. Either of both may be null.
+     */
+    private void appendUserIdsWhere(SQLiteQueryBuilder qb, String ftsMatch, String userIdWhere) {
+        String where = "";
+        if (ftsMatch != null) {
+            where += "tmp." + BaseColumns._ID + " IN (SELECT docid FROM " + Tables.USER_IDS_FTS
+                    + " WHERE " + Tables.USER_IDS_FTS + " MATCH "
+                    + DatabaseUtils.sqlEscapeString(ftsMatch) + ")";
+        }
+        if (userIdWhere != null) {
+            if (where.length() > 0) {
+                where += " AND ";
+            }
+            where += "(" + userIdWhere + ")";
+        }
+
+        qb.appendWhere(" AND " + Tables.KEY_RINGS + "." + BaseColumns._ID + " IN (SELECT tmp."
+                + UserIdsColumns.KEY_RING_ROW_ID + " FROM " + Tables.USER_IDS + " AS tmp WHERE "
+                + where + ")");
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -455,6 +599,12 @@ public class KeychainProvider extends ContentProvider {
 
         int match = mUriMatcher.match(uri);
 
+        if (match == KEY_RINGS_VERSION) {
+            MatrixCursor versionCursor = new MatrixCursor(new String[]{KeyRings.VERSION}, 1);
+            versionCursor.addRow(new Object[]{sVersionPrefix + sKeyRingsVersion.get()});
+            return versionCursor;
+        }
+
         switch (match) {
             case PUBLIC_KEY_RING:
             case SECRET_KEY_RING:
@@ -496,8 +646,18 @@ public class KeychainProvider extends ContentProvider {
             case PUBLIC_KEY_RING_BY_KEY_ID:
                 qb = buildKeyRingQueryWithSpecificKey(qb, match);
 
-                qb.appendWhere(" AND " + Tables.KEYS + "." + KeysColumns.KEY_ID + " = ");
-                qb.appendWhereEscapeString(uri.getLastPathSegment());
+                String keyIdList = "";
+                for (String keyId : uri.getLastPathSegment().split(",")) {
+                    if (keyId.length() == 0) {
+                        continue;
+                    }
+                    if (keyIdList.length() > 0) {
+                        keyIdList += ", ";
+                    }
+                    keyIdList += DatabaseUtils.sqlEscapeString(keyId);
+                }
+                qb.appendWhere(" AND " + Tables.KEYS + "." + KeysColumns.KEY_ID + " IN ("
+                        + keyIdList + ")");
 
                 if (TextUtils.isEmpty(sortOrder)) {
                     sortOrder = Tables.USER_IDS + "." + UserIdsColumns.USER_ID + " ASC";
@@ -512,25 +672,32 @@ public class KeychainProvider extends ContentProvider {
                 String emails = uri.getLastPathSegment();
                 String chunks[] = emails.split(" *, *");
                 boolean gotCondition = false;
+                boolean ftsUsable = true;
                 String emailWhere = "";
+                String emailMatch = "";
                 for (int i = 0; i < chunks.length; ++i) {
                     if (chunks[i].length() == 0) {
                         continue;
                     }
-                    if (i != 0) {
+                    if (gotCondition) {
                         emailWhere += " OR ";
+                        emailMatch += " OR ";
                     }
                     emailWhere += "tmp." + UserIdsColumns.USER_ID + " LIKE ";
                     // match '*<email>', so it has to be at the *end* of the user id
                     emailWhere += DatabaseUtils.sqlEscapeString("%<" + chunks[i] + ">");
+
+                    // phrase of the email's tokens, narrows down the rows checked by LIKE
+                    String tokens = TextUtils.join(" ", getFtsTokens(chunks[i]));
+                    if (tokens.length() == 0) {
+                        ftsUsable = false;
+                    }
+                    emailMatch += "\"" + tokens + "\"";
                     gotCondition = true;
                 }
 
                 if (gotCondition) {
-                    qb.appendWhere(" AND EXISTS (SELECT tmp." + BaseColumns._ID + " FROM "
-                            + Tables.USER_IDS + " AS tmp WHERE tmp." + UserIdsColumns.KEY_RING_ROW_ID
-                            + " = " + Tables.KEY_RINGS + "." + BaseColumns._ID + " AND (" + emailWhere
-                            + "))");
+                    appendUserIdsWhere(qb, ftsUsable ? emailMatch : null, emailWhere);
                 }
 
                 break;
@@ -544,10 +711,22 @@ public class KeychainProvider extends ContentProvider {
                 String likeEmailWhere = "tmp." + UserIdsColumns.USER_ID + " LIKE "
                         + DatabaseUtils.sqlEscapeString("%<%" + likeEmail + "%>");
 
-                qb.appendWhere(" AND EXISTS (SELECT tmp." + BaseColumns._ID + " FROM "
-                        + Tables.USER_IDS + " AS tmp WHERE tmp." + UserIdsColumns.KEY_RING_ROW_ID
-                        + " = " + Tables.KEY_RINGS + "." + BaseColumns._ID + " AND (" + likeEmailWhere
-                        + "))");
+                appendUserIdsWhere(qb, buildFtsPrefixMatch(likeEmail), likeEmailWhere);
+
+                break;
+
+            case SECRET_KEY_RING_BY_SEARCH:
+            case PUBLIC_KEY_RING_BY_SEARCH:
+                qb = buildKeyRingQuery(qb, match);
+
+                String searchMatch = buildFtsPrefixMatch(uri.getLastPathSegment());
+                if (searchMatch != null) {
+                    appendUserIdsWhere(qb, searchMatch, null);
+                }
+
+                if (TextUtils.isEmpty(sortOrder)) {
+                    sortOrder = Tables.USER_IDS + "." + UserIdsColumns.USER_ID + " ASC";
+                }
 
                 break;
 
@@ -564,6 +743,16 @@ public class KeychainProvider extends ContentProvider {
 
                 break;
 
+            case PUBLIC_KEYS:
+            case SECRET_KEYS:
+                qb.setTables(Tables.KEYS);
+                qb.appendWhere(KeysColumns.TYPE + " = ");
+                qb.appendWhereEscapeString(Integer.toString(getKeyType(match)));
+
+                qb.setProjectionMap(getProjectionMapForKeys());
+
+                break;
+
             case PUBLIC_KEY_RING_KEY_BY_ROW_ID:
             case SECRET_KEY_RING_KEY_BY_ROW_ID:
                 qb.setTables(Tables.KEYS);
@@ -599,6 +788,41 @@ public class KeychainProvider extends ContentProvider {
 
                 break;
 
+            case PUBLIC_KEY_RING_USER_ID_BY_EMAILS:
+                // (email, master key id) of every user id with one of the emails, uses the
+                // index on the normalized email column instead of LIKE over all user ids
+                qb.setTables(Tables.USER_IDS + " INNER JOIN " + Tables.KEY_RINGS + " ON ("
+                        + Tables.KEY_RINGS + "." + BaseColumns._ID + " = " + Tables.USER_IDS + "."
+                        + UserIdsColumns.KEY_RING_ROW_ID + ")");
+                qb.setDistinct(true);
+
+                qb.appendWhere(Tables.KEY_RINGS + "." + KeyRingsColumns.TYPE + " = ");
+                qb.appendWhereEscapeString(Integer.toString(getKeyType(match)));
+
+                String emailList = "";
+                HashSet<String> listedEmails = new HashSet<String>();
+                for (String email : uri.getPathSegments().get(3).split(",")) {
+                    email = ProviderHelper.normalizeEmail(email);
+                    if (email.length() == 0 || !listedEmails.add(email)) {
+                        continue;
+                    }
+                    if (emailList.length() > 0) {
+                        emailList += ", ";
+                    }
+                    emailList += DatabaseUtils.sqlEscapeString(email);
+                }
+                qb.appendWhere(" AND " + Tables.USER_IDS + "." + UserIdsColumns.EMAIL + " IN ("
+                        + emailList + ")");
+
+                HashMap<String, String> emailProjectionMap = new HashMap<String, String>();
+                emailProjectionMap.put(UserIdsColumns.EMAIL, Tables.USER_IDS + "."
+                        + UserIdsColumns.EMAIL);
+                emailProjectionMap.put(KeyRingsColumns.MASTER_KEY_ID, Tables.KEY_RINGS + "."
+                        + KeyRingsColumns.MASTER_KEY_ID);
+                qb.setProjectionMap(emailProjectionMap);
+
+                break;
+
             case API_APPS:
                 qb.setTables(Tables.API_APPS);
 
@@ -714,7 +938,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(match, uri);
 
         } catch (SQLiteConstraintException e) {
             Log.e(Constants.TAG, "Constraint exception on insert! Entry already existing?");
@@ -763,7 +987,7 @@ public class KeychainProvider extends ContentProvider {
                 break;
             case PUBLIC_KEY_RING_USER_ID_BY_ROW_ID:
             case SECRET_KEY_RING_USER_ID_BY_ROW_ID:
-                count = db.delete(Tables.KEYS, buildDefaultUserIdsSelection(uri, selection),
+                count = db.delete(Tables.USER_IDS, buildDefaultUserIdsSelection(uri, selection),
                         selectionArgs);
                 break;
             case API_APPS_BY_ROW_ID:
@@ -779,7 +1003,7 @@ public class KeychainProvider extends ContentProvider {
         }
 
         // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(match, uri);
 
         return count;
     }
@@ -849,7 +1073,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(match, uri);
 
         } catch (SQLiteConstraintException e) {
             Log.e(Constants.TAG, "Constraint exception on update! Entry already existing?");
@@ -858,6 +1082,143 @@ public class KeychainProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Applies all operations in one transaction. Change notifications are coalesced and sent
+     * after the transaction has been committed.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mApgDatabase.getWritableDatabase();
+
+        boolean outermost = beginBatch();
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            final int numOperations = operations.size();
+            final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+            for (int i = 0; i < numOperations; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()) {
+                    db.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            if (outermost) {
+                endBatch(successful);
+            }
+        }
+    }
+
+    /**
+     * Inserts all values in one transaction. Change notifications are coalesced and sent after the
+     * transaction has been committed.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final SQLiteDatabase db = mApgDatabase.getWritableDatabase();
+
+        int count = 0;
+        boolean outermost = beginBatch();
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                if (insert(uri, value) != null) {
+                    count++;
+                }
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            if (outermost) {
+                endBatch(successful);
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Starts recording changes on the current thread instead of notifying about them
+     *
+     * @return true if no batch was in progress before
+     */
+    private boolean beginBatch() {
+        if (mBatchChanges.get() != null) {
+            return false;
+        }
+        mBatchChanges.set(new BatchChanges());
+        return true;
+    }
+
+    /**
+     * Stops recording changes on the current thread. If the transaction has been committed, one
+     * notification per changed base uri and one broadcast per changed key type are sent.
+     *
+     * @param successful false if the transaction has been rolled back, nothing changed then
+     */
+    private void endBatch(boolean successful) {
+        BatchChanges changes = mBatchChanges.get();
+        mBatchChanges.remove();
+        if (!successful) {
+            return;
+        }
+
+        if (changes.keyRingsChanged) {
+            keyRingsChanged();
+        }
+        for (Integer keyType : changes.keyTypes) {
+            sendBroadcastDatabaseChange(keyType, KeyRings.CONTENT_TYPE);
+        }
+        for (Uri uri : changes.uris) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Called after a write to the key ring tables has been committed
+     */
+    private void keyRingsChanged() {
+        // caches of other processes check the version before every lookup
+        sKeyRingsVersion.incrementAndGet();
+        // parsed key rings cached in this process may be outdated now
+        ProviderHelper.invalidateKeyRingCaches();
+    }
+
+    /**
+     * Notifies about a change of the given uri. While a batch is applied, the change is recorded
+     * for the base uri of its table instead, which also notifies observers of all uris below it.
+     */
+    private void notifyChange(int match, Uri uri) {
+        boolean apiApps = (match == API_APPS || match == API_APPS_BY_ROW_ID
+                || match == API_APPS_BY_PACKAGE_NAME);
+
+        BatchChanges changes = mBatchChanges.get();
+        if (changes == null) {
+            if (!apiApps) {
+                keyRingsChanged();
+            }
+            getContext().getContentResolver().notifyChange(uri, null);
+            return;
+        }
+
+        if (apiApps) {
+            changes.uris.add(ApiApps.CONTENT_URI);
+        } else {
+            changes.uris.add(KeyRings.CONTENT_URI);
+            // key rings read during the transaction are the old ones, so caches are only
+            // invalidated after the commit
+            changes.keyRingsChanged = true;
+        }
+    }
+
     /**
      * Build default selection statement for KeyRings. If no extra selection is specified only build
      * where clause with rowId
@@ -971,6 +1332,12 @@ public class KeychainProvider extends ContentProvider {
      * updated, or deleted
      */
     private void sendBroadcastDatabaseChange(int keyType, String contentItemType) {
+        BatchChanges changes = mBatchChanges.get();
+        if (changes != null) {
+            changes.keyTypes.add(keyType);
+            return;
+        }
+
         // TODO: Disabled, old API
         // Intent intent = new Intent();
         // intent.setAction(ACTION_BROADCAST_DATABASE_CHANGE);
@@ -20,7 +20,14 @@ package org.sufficientlysecure.keychain.provider;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.spongycastle.bcpg.UserAttributePacket;
@@ -40,6 +47,7 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
 import org.sufficientlysecure.keychain.service.remote.AppSettings;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
@@ -53,8 +61,150 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.RemoteException;
+import android.text.TextUtils;
 
 public class ProviderHelper {
+    private static final int KEY_RING_CACHE_SIZE = 32;
+
+    private static final KeyRingCache sPublicKeyRingCache = new KeyRingCache(KEY_RING_CACHE_SIZE);
+    private static final KeyRingCache sSecretKeyRingCache = new KeyRingCache(KEY_RING_CACHE_SIZE);
+
+    /** version of the key ring tables the caches have been filled with */
+    private static String sKeyRingsVersion;
+    private static final Object sKeyRingsVersionLock = new Object();
+
+    private static KeyIdDirectory sPublicKeyIdDirectory;
+    private static KeyIdDirectory sSecretKeyIdDirectory;
+
+    /**
+     * Used in uris of keys and userIds that are inserted together with their new keyRing. The
+     * provider takes the actual _ID of the keyRing from their values, which reference the result
+     * of the keyRing insert.
+     */
+    private static final long NEW_KEY_RING_ROW_ID = 0;
+
+    /**
+     * Cache of public key rings parsed by the getPGPPublicKeyRingBy* methods. Exposed to read the
+     * hit and miss counters.
+     */
+    public static KeyRingCache getPublicKeyRingCache(Context context) {
+        checkKeyRingsVersion(context);
+        return sPublicKeyRingCache;
+    }
+
+    /**
+     * Cache of secret key rings parsed by the getPGPSecretKeyRingBy* methods. Exposed to read the
+     * hit and miss counters.
+     */
+    public static KeyRingCache getSecretKeyRingCache(Context context) {
+        checkKeyRingsVersion(context);
+        return sSecretKeyRingCache;
+    }
+
+    /**
+     * Clears the key ring caches and the unlocked private keys of this process. Called by
+     * KeychainProvider on every write to the key ring tables.
+     */
+    public static void invalidateKeyRingCaches() {
+        sPublicKeyRingCache.clear();
+        sSecretKeyRingCache.clear();
+        PassphraseCacheService.clearCachedPrivateKeys();
+    }
+
+    /**
+     * KeychainProvider clears the caches directly, but it runs in the main process only. Other
+     * processes, like the one of the remote API, would only learn about writes asynchronously.
+     * So before every lookup the version of the key ring tables is queried, the caches are
+     * cleared if it changed since they have been filled.
+     */
+    private static void checkKeyRingsVersion(Context context) {
+        String version = null;
+        Cursor cursor = context.getContentResolver().query(KeyRings.buildVersionUri(),
+                new String[]{KeyRings.VERSION}, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    version = cursor.getString(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        boolean changed;
+        synchronized (sKeyRingsVersionLock) {
+            // unknown version, nothing cached can be trusted
+            changed = (version == null || !version.equals(sKeyRingsVersion));
+            if (changed) {
+                // cleared before the new version is visible to other lookups
+                sPublicKeyRingCache.clear();
+                sSecretKeyRingCache.clear();
+                sKeyRingsVersion = version;
+            }
+        }
+        if (changed) {
+            PassphraseCacheService.clearCachedPrivateKeys();
+        }
+    }
+
+    /**
+     * Ids of all public keys in the database. Built with one query and kept until the next write
+     * to the key ring tables.
+     */
+    public static KeyIdDirectory getPublicKeyIdDirectory(Context context) {
+        return getKeyIdDirectory(context, false);
+    }
+
+    /**
+     * Ids of all secret keys in the database. Built with one query and kept until the next write
+     * to the key ring tables.
+     */
+    public static KeyIdDirectory getSecretKeyIdDirectory(Context context) {
+        return getKeyIdDirectory(context, true);
+    }
+
+    private static KeyIdDirectory getKeyIdDirectory(Context context, boolean secret) {
+        KeyRingCache cache = secret ? getSecretKeyRingCache(context)
+                : getPublicKeyRingCache(context);
+        return getKeyIdDirectory(context, cache, secret);
+    }
+
+    private static KeyIdDirectory getKeyIdDirectory(Context context, KeyRingCache cache,
+                                                    boolean secret) {
+        synchronized (ProviderHelper.class) {
+            KeyIdDirectory directory = secret ? sSecretKeyIdDirectory : sPublicKeyIdDirectory;
+            if (directory != null && directory.getGeneration() == cache.getGeneration()) {
+                return directory;
+            }
+        }
+
+        long generation = cache.getGeneration();
+        Uri queryUri = secret ? Keys.buildSecretKeysUri() : Keys.buildPublicKeysUri();
+        Cursor cursor = context.getContentResolver().query(queryUri,
+                new String[]{Keys.KEY_ID}, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+
+        KeyIdDirectory directory;
+        try {
+            directory = KeyIdDirectory.fromCursor(cursor, 0, generation);
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (ProviderHelper.class) {
+            // a directory built during a write may miss keys, use it this time only
+            if (generation == cache.getGeneration()) {
+                if (secret) {
+                    sSecretKeyIdDirectory = directory;
+                } else {
+                    sPublicKeyIdDirectory = directory;
+                }
+            }
+        }
+        return directory;
+    }
 
     /**
      * Private helper method to get PGPKeyRing from database
@@ -93,8 +243,16 @@ public class ProviderHelper {
      */
     public static PGPPublicKeyRing getPGPPublicKeyRingByMasterKeyId(Context context,
                                                                     long masterKeyId) {
+        PGPKeyRing keyRing = getPublicKeyRingCache(context).getByMasterKeyId(masterKeyId);
+        if (keyRing != null) {
+            return (PGPPublicKeyRing) keyRing;
+        }
+
+        long generation = sPublicKeyRingCache.getGeneration();
         Uri queryUri = KeyRings.buildPublicKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId));
-        return (PGPPublicKeyRing) getPGPKeyRing(context, queryUri);
+        keyRing = getPGPKeyRing(context, queryUri);
+        sPublicKeyRingCache.put(keyRing, generation);
+        return (PGPPublicKeyRing) keyRing;
     }
 
     /**
@@ -102,8 +260,16 @@ public class ProviderHelper {
      * with this keyId
      */
     public static PGPPublicKeyRing getPGPPublicKeyRingByKeyId(Context context, long keyId) {
+        PGPKeyRing keyRing = getPublicKeyRingCache(context).getByKeyId(keyId);
+        if (keyRing != null) {
+            return (PGPPublicKeyRing) keyRing;
+        }
+
+        long generation = sPublicKeyRingCache.getGeneration();
         Uri queryUri = KeyRings.buildPublicKeyRingsByKeyIdUri(Long.toString(keyId));
-        return (PGPPublicKeyRing) getPGPKeyRing(context, queryUri);
+        keyRing = getPGPKeyRing(context, queryUri);
+        sPublicKeyRingCache.put(keyRing, generation);
+        return (PGPPublicKeyRing) keyRing;
     }
 
     /**
@@ -132,8 +298,16 @@ public class ProviderHelper {
      */
     public static PGPSecretKeyRing getPGPSecretKeyRingByMasterKeyId(Context context,
                                                                     long masterKeyId) {
+        PGPKeyRing keyRing = getSecretKeyRingCache(context).getByMasterKeyId(masterKeyId);
+        if (keyRing != null) {
+            return (PGPSecretKeyRing) keyRing;
+        }
+
+        long generation = sSecretKeyRingCache.getGeneration();
         Uri queryUri = KeyRings.buildSecretKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId));
-        return (PGPSecretKeyRing) getPGPKeyRing(context, queryUri);
+        keyRing = getPGPKeyRing(context, queryUri);
+        sSecretKeyRingCache.put(keyRing, generation);
+        return (PGPSecretKeyRing) keyRing;
     }
 
     /**
@@ -141,8 +315,16 @@ public class ProviderHelper {
      * with this keyId
      */
     public static PGPSecretKeyRing getPGPSecretKeyRingByKeyId(Context context, long keyId) {
+        PGPKeyRing keyRing = getSecretKeyRingCache(context).getByKeyId(keyId);
+        if (keyRing != null) {
+            return (PGPSecretKeyRing) keyRing;
+        }
+
+        long generation = sSecretKeyRingCache.getGeneration();
         Uri queryUri = KeyRings.buildSecretKeyRingsByKeyIdUri(Long.toString(keyId));
-        return (PGPSecretKeyRing) getPGPKeyRing(context, queryUri);
+        keyRing = getPGPKeyRing(context, queryUri);
+        sSecretKeyRingCache.put(keyRing, generation);
+        return (PGPSecretKeyRing) keyRing;
     }
 
     /**
@@ -159,74 +341,602 @@ public class ProviderHelper {
     }
 
     /**
-     * Saves PGPPublicKeyRing with its keys and userIds in DB
+     * Retrieves the public key rings containing the keys with these keyIds. Key ids not in the
+     * key id directory are only queried if the key ring tables have been written since it has
+     * been built, the other rings are read from the cache or with one query.
+     *
+     * @return key rings in the order of the key ids, null for unknown key ids
      */
-    @SuppressWarnings("unchecked")
-    public static void saveKeyRing(Context context, PGPPublicKeyRing keyRing) throws IOException {
-        PGPPublicKey masterKey = keyRing.getPublicKey();
-        long masterKeyId = masterKey.getKeyID();
+    public static PGPPublicKeyRing[] getPGPPublicKeyRingsByKeyIds(Context context, long[] keyIds) {
+        PGPPublicKeyRing[] keyRings = new PGPPublicKeyRing[keyIds.length];
+        getPGPKeyRingsByKeyIds(context, keyIds, keyRings, false);
+        return keyRings;
+    }
+
+    /**
+     * Retrieves the secret key rings containing the keys with these keyIds. Key ids not in the
+     * key id directory are only queried if the key ring tables have been written since it has
+     * been built, the other rings are read from the cache or with one query.
+     *
+     * @return key rings in the order of the key ids, null for unknown key ids
+     */
+    public static PGPSecretKeyRing[] getPGPSecretKeyRingsByKeyIds(Context context, long[] keyIds) {
+        PGPSecretKeyRing[] keyRings = new PGPSecretKeyRing[keyIds.length];
+        getPGPKeyRingsByKeyIds(context, keyIds, keyRings, true);
+        return keyRings;
+    }
 
-        Uri deleteUri = KeyRings.buildPublicKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId));
+    private static void getPGPKeyRingsByKeyIds(Context context, long[] keyIds,
+                                               PGPKeyRing[] keyRings, boolean secret) {
+        KeyRingCache cache = secret ? getSecretKeyRingCache(context)
+                : getPublicKeyRingCache(context);
+        KeyIdDirectory directory = getKeyIdDirectory(context, cache, secret);
+
+        ArrayList<String> missingKeyIds = new ArrayList<String>();
+        boolean unknownKeyIds = false;
+        for (int i = 0; i < keyIds.length; i++) {
+            keyRings[i] = cache.getByKeyId(keyIds[i]);
+            if (keyRings[i] == null) {
+                if (directory == null || directory.contains(keyIds[i])) {
+                    missingKeyIds.add(Long.toString(keyIds[i]));
+                } else {
+                    unknownKeyIds = true;
+                }
+            }
+        }
+        if (unknownKeyIds) {
+            // the key ring tables may have been written since the directory has been built, then
+            // the provider is asked before these keys are reported as missing
+            checkKeyRingsVersion(context);
+            if (cache.getGeneration() != directory.getGeneration()) {
+                for (int i = 0; i < keyIds.length; i++) {
+                    if (keyRings[i] == null && !directory.contains(keyIds[i])) {
+                        missingKeyIds.add(Long.toString(keyIds[i]));
+                    }
+                }
+            }
+        }
+        if (missingKeyIds.isEmpty()) {
+            return;
+        }
 
-        // get current _ID of key
-        long currentRowId = -1;
-        Cursor oldQuery = context.getContentResolver().query(deleteUri, new String[]{KeyRings._ID}, null, null, null);
-        if (oldQuery != null && oldQuery.moveToFirst()) {
-            currentRowId = oldQuery.getLong(0);
-        } else {
-            Log.e(Constants.TAG, "Key could not be found! Something wrong is happening!");
+        long generation = cache.getGeneration();
+        String keyIdList = TextUtils.join(",", missingKeyIds);
+        Uri queryUri = secret ? KeyRings.buildSecretKeyRingsByKeyIdUri(keyIdList)
+                : KeyRings.buildPublicKeyRingsByKeyIdUri(keyIdList);
+        Cursor cursor = context.getContentResolver().query(queryUri,
+                new String[]{KeyRings.KEY_RING_DATA}, null, null, null);
+        if (cursor == null) {
+            return;
         }
 
-        // delete old version of this keyRing, which also deletes all keys and userIds on cascade
         try {
-            context.getContentResolver().delete(deleteUri, null, null);
-        } catch (UnsupportedOperationException e) {
-            Log.e(Constants.TAG, "Key could not be deleted! Maybe we are creating a new one!", e);
+            while (cursor.moveToNext()) {
+                byte[] data = cursor.getBlob(0);
+                if (data == null) {
+                    continue;
+                }
+                PGPKeyRing keyRing = PgpConversionHelper.BytesToPGPKeyRing(data);
+                if (keyRing == null) {
+                    continue;
+                }
+                cache.put(keyRing, generation);
+
+                for (int i = 0; i < keyIds.length; i++) {
+                    if (keyRings[i] == null && containsKey(keyRing, keyIds[i])) {
+                        keyRings[i] = keyRing;
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
         }
+    }
 
-        ContentValues values = new ContentValues();
-        // use exactly the same _ID again to replace key in-place.
-        // NOTE: If we would not use the same _ID again, getting back to the ViewKeyActivity would result in Nullpointer,
-        // because the currently loaded key would be gone from the database
-        if (currentRowId != -1)
-            values.put(KeyRings._ID, currentRowId);
-        values.put(KeyRings.MASTER_KEY_ID, masterKeyId);
-        values.put(KeyRings.KEY_RING_DATA, keyRing.getEncoded());
+    /**
+     * Retrieves the public key rings with these masterKeyIds from the cache or with one query
+     *
+     * @return key rings in the order of the master key ids, null for unknown master key ids
+     */
+    public static PGPPublicKeyRing[] getPGPPublicKeyRingsByMasterKeyIds(Context context,
+                                                                       long[] masterKeyIds) {
+        KeyRingCache cache = getPublicKeyRingCache(context);
+        PGPPublicKeyRing[] keyRings = new PGPPublicKeyRing[masterKeyIds.length];
+
+        int missing = 0;
+        for (int i = 0; i < masterKeyIds.length; i++) {
+            keyRings[i] = (PGPPublicKeyRing) cache.getByMasterKeyId(masterKeyIds[i]);
+            if (keyRings[i] == null) {
+                missing++;
+            }
+        }
+        if (missing == 0) {
+            return keyRings;
+        }
 
-        // insert new version of this keyRing
-        Uri uri = KeyRings.buildPublicKeyRingsUri();
-        Uri insertedUri = context.getContentResolver().insert(uri, values);
-        long keyRingRowId = Long.valueOf(insertedUri.getLastPathSegment());
+        long[] missingMasterKeyIds = new long[missing];
+        for (int i = 0, j = 0; i < masterKeyIds.length; i++) {
+            if (keyRings[i] == null) {
+                missingMasterKeyIds[j++] = masterKeyIds[i];
+            }
+        }
 
-        // save all keys and userIds included in keyRing object in database
-        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        long generation = cache.getGeneration();
+        Cursor cursor = getCursorWithSelectedKeyringMasterKeyIds(context,
+                KeyRings.buildPublicKeyRingsUri(), missingMasterKeyIds);
+        if (cursor == null) {
+            return keyRings;
+        }
 
-        int rank = 0;
-        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
-            operations.add(buildPublicKeyOperations(context, keyRingRowId, key, rank));
-            ++rank;
+        try {
+            int masterKeyIdCol = cursor.getColumnIndex(KeyRings.MASTER_KEY_ID);
+            int dataCol = cursor.getColumnIndex(KeyRings.KEY_RING_DATA);
+            while (cursor.moveToNext()) {
+                byte[] data = cursor.getBlob(dataCol);
+                if (data == null) {
+                    continue;
+                }
+                PGPKeyRing keyRing = PgpConversionHelper.BytesToPGPKeyRing(data);
+                if (!(keyRing instanceof PGPPublicKeyRing)) {
+                    continue;
+                }
+                cache.put(keyRing, generation);
+
+                long masterKeyId = cursor.getLong(masterKeyIdCol);
+                for (int i = 0; i < masterKeyIds.length; i++) {
+                    if (keyRings[i] == null && masterKeyIds[i] == masterKeyId) {
+                        keyRings[i] = (PGPPublicKeyRing) keyRing;
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
         }
 
-        int userIdRank = 0;
-        for (String userId : new IterableIterator<String>(masterKey.getUserIDs())) {
-            operations.add(buildPublicUserIdOperations(context, keyRingRowId, userId, userIdRank));
-            ++userIdRank;
+        return keyRings;
+    }
+
+    private static boolean containsKey(PGPKeyRing keyRing, long keyId) {
+        if (keyRing instanceof PGPSecretKeyRing) {
+            return ((PGPSecretKeyRing) keyRing).getSecretKey(keyId) != null;
         }
+        return ((PGPPublicKeyRing) keyRing).getPublicKey(keyId) != null;
+    }
 
-        for (PGPSignature certification : new IterableIterator<PGPSignature>(masterKey.getSignaturesOfType(PGPSignature.POSITIVE_CERTIFICATION))) {
-            //TODO: how to do this?? we need to verify the signatures again and again when they are displayed...
-//            if (certification.verify
-//            operations.add(buildPublicKeyOperations(context, keyRingRowId, key, rank));
+    /**
+     * Email of a user id in the form "Name (Comment) <email>", as stored in the email column of
+     * user ids
+     *
+     * @return normalized email or null if the user id does not end with an email
+     */
+    public static String getEmailOfUserId(String userId) {
+        if (userId == null || !userId.endsWith(">")) {
+            return null;
+        }
+        int start = userId.lastIndexOf('<');
+        if (start == -1) {
+            return null;
+        }
+        String email = normalizeEmail(userId.substring(start + 1, userId.length() - 1));
+        return (email.length() > 0) ? email : null;
+    }
+
+    public static String normalizeEmail(String email) {
+        return email.trim().toLowerCase(Locale.US);
+    }
+
+    /**
+     * Public keys found for a list of emails by {@link #resolveEmails(Context, String[])}
+     */
+    public static class EmailResolution {
+        private final ArrayList<Long> mMasterKeyIds = new ArrayList<Long>();
+        private final ArrayList<String> mMissingEmails = new ArrayList<String>();
+        private final ArrayList<String> mAmbiguousEmails = new ArrayList<String>();
+
+        /**
+         * @return master key ids of the resolved emails, each key once. For ambiguous emails
+         * this is one of the matching keys.
+         */
+        public ArrayList<Long> getMasterKeyIds() {
+            return mMasterKeyIds;
+        }
+
+        /**
+         * @return emails without a matching public key
+         */
+        public ArrayList<String> getMissingEmails() {
+            return mMissingEmails;
+        }
+
+        /**
+         * @return emails with more than one matching public key
+         */
+        public ArrayList<String> getAmbiguousEmails() {
+            return mAmbiguousEmails;
+        }
+
+        public boolean isComplete() {
+            return mMissingEmails.isEmpty() && mAmbiguousEmails.isEmpty();
+        }
+    }
+
+    /**
+     * Finds the public keys for all given emails with a single query. Emails that are equal after
+     * normalization are resolved once.
+     */
+    public static EmailResolution resolveEmails(Context context, String[] emails) {
+        EmailResolution resolution = new EmailResolution();
+        if (emails == null || emails.length == 0) {
+            return resolution;
+        }
+
+        // normalized email -> email as given, first occurrence only
+        LinkedHashMap<String, String> uniqueEmails = new LinkedHashMap<String, String>();
+        for (String email : emails) {
+            String normalized = normalizeEmail(email);
+            if (!uniqueEmails.containsKey(normalized)) {
+                uniqueEmails.put(normalized, email);
+            }
+        }
+
+        // normalized email -> master key ids
+        HashMap<String, ArrayList<Long>> found = new HashMap<String, ArrayList<Long>>();
+        Cursor cursor = context.getContentResolver().query(
+                UserIds.buildPublicUserIdsByEmailsUri(
+                        TextUtils.join(",", uniqueEmails.keySet())),
+                new String[]{UserIds.EMAIL, KeyRings.MASTER_KEY_ID}, null, null, null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                String email = cursor.getString(0);
+                ArrayList<Long> masterKeyIds = found.get(email);
+                if (masterKeyIds == null) {
+                    masterKeyIds = new ArrayList<Long>();
+                    found.put(email, masterKeyIds);
+                }
+                masterKeyIds.add(cursor.getLong(1));
+            }
+            cursor.close();
+        }
+
+        for (Map.Entry<String, String> entry : uniqueEmails.entrySet()) {
+            String email = entry.getValue();
+            ArrayList<Long> masterKeyIds = found.get(entry.getKey());
+            if (masterKeyIds == null) {
+                resolution.mMissingEmails.add(email);
+                continue;
+            }
+            // several emails of the same key add it once
+            if (!resolution.mMasterKeyIds.contains(masterKeyIds.get(0))) {
+                resolution.mMasterKeyIds.add(masterKeyIds.get(0));
+            }
+            if (masterKeyIds.size() > 1) {
+                resolution.mAmbiguousEmails.add(email);
+            }
+        }
+
+        return resolution;
+    }
+
+    /**
+     * Summary of the changes made by {@link #saveKeyRing(Context, PGPPublicKeyRing)}
+     */
+    public static class SaveKeyRingResult {
+        private boolean mNew = false;
+        private int mKeysAdded = 0;
+        private int mKeysUpdated = 0;
+        private int mKeysRemoved = 0;
+        private int mUserIdsAdded = 0;
+        private int mUserIdsUpdated = 0;
+        private int mUserIdsRemoved = 0;
+        private boolean mKeyRingUpdated = false;
+        private boolean mFailed = false;
+
+        /**
+         * @return true if the key ring has not been in the database before
+         */
+        public boolean isNew() {
+            return mNew;
+        }
+
+        /**
+         * @return true if the key ring has been in the database before and has been changed
+         */
+        public boolean isUpdated() {
+            return !mNew && mKeyRingUpdated;
+        }
+
+        /**
+         * @return true if the key ring has been in the database before and is unchanged
+         */
+        public boolean isUnchanged() {
+            return !mNew && !mKeyRingUpdated;
+        }
+
+        /**
+         * @return true if writing the key ring to the database failed, nothing has been changed
+         */
+        public boolean isFailed() {
+            return mFailed;
+        }
+
+        public int getKeysAdded() {
+            return mKeysAdded;
+        }
+
+        public int getKeysUpdated() {
+            return mKeysUpdated;
+        }
+
+        public int getKeysRemoved() {
+            return mKeysRemoved;
+        }
+
+        public int getUserIdsAdded() {
+            return mUserIdsAdded;
+        }
+
+        public int getUserIdsUpdated() {
+            return mUserIdsUpdated;
         }
 
+        public int getUserIdsRemoved() {
+            return mUserIdsRemoved;
+        }
+
+        @Override
+        public String toString() {
+            return "failed: " + mFailed + ", new: " + mNew + ", updated: " + isUpdated() + ", keys added/updated/removed: "
+                    + mKeysAdded + "/" + mKeysUpdated + "/" + mKeysRemoved
+                    + ", user ids added/updated/removed: " + mUserIdsAdded + "/" + mUserIdsUpdated
+                    + "/" + mUserIdsRemoved;
+        }
+    }
+
+    /**
+     * Saves PGPPublicKeyRing with its keys and userIds in DB. If a version of this keyRing is
+     * already stored, only the rows that differ from the given keyRing are changed, nothing is
+     * written if it is identical.
+     */
+    public static SaveKeyRingResult saveKeyRing(Context context, PGPPublicKeyRing keyRing)
+            throws IOException {
+        ArrayList<PGPPublicKeyRing> keyRings = new ArrayList<PGPPublicKeyRing>();
+        keyRings.add(keyRing);
+        return saveKeyRings(context, keyRings).get(0);
+    }
+
+    /**
+     * Saves multiple PGPPublicKeyRings like {@link #saveKeyRing(Context, PGPPublicKeyRing)}, but
+     * writes all of them in a single batch, thus a single transaction.
+     *
+     * @return results in the order of the given keyRings, results of key rings in a failed
+     * transaction are marked as failed
+     */
+    public static ArrayList<SaveKeyRingResult> saveKeyRings(Context context,
+                                                            List<PGPPublicKeyRing> keyRings)
+            throws IOException {
+        ArrayList<SaveKeyRingResult> results = new ArrayList<SaveKeyRingResult>();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        HashSet<Long> masterKeyIds = new HashSet<Long>();
+        // index of the first result belonging to the current batch
+        int batchStart = 0;
+
+        for (PGPPublicKeyRing keyRing : keyRings) {
+            long masterKeyId = keyRing.getPublicKey().getKeyID();
+            if (!masterKeyIds.add(masterKeyId)) {
+                // same keyRing twice, the second one has to be merged with the stored first one
+                applyBatch(context, operations, results, batchStart);
+                operations.clear();
+                masterKeyIds.clear();
+                masterKeyIds.add(masterKeyId);
+                batchStart = results.size();
+            }
+
+            results.add(addSaveKeyRingOperations(context, operations, keyRing));
+        }
+
+        applyBatch(context, operations, results, batchStart);
+
+        return results;
+    }
+
+    /**
+     * Applies the operations in a single transaction, if it fails all results starting at
+     * batchStart are marked as failed
+     */
+    private static void applyBatch(Context context, ArrayList<ContentProviderOperation> operations,
+                                   ArrayList<SaveKeyRingResult> results, int batchStart) {
+        if (operations.isEmpty()) {
+            return;
+        }
 
         try {
             context.getContentResolver().applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            return;
         } catch (RemoteException e) {
             Log.e(Constants.TAG, "applyBatch failed!", e);
         } catch (OperationApplicationException e) {
             Log.e(Constants.TAG, "applyBatch failed!", e);
         }
+
+        for (int i = batchStart; i < results.size(); i++) {
+            results.get(i).mFailed = true;
+        }
+    }
+
+    /**
+     * Adds the operations needed to save the given keyRing
+     */
+    @SuppressWarnings("unchecked")
+    private static SaveKeyRingResult addSaveKeyRingOperations(Context context,
+                                                              ArrayList<ContentProviderOperation> operations,
+                                                              PGPPublicKeyRing keyRing)
+            throws IOException {
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+        long masterKeyId = masterKey.getKeyID();
+        byte[] keyRingData = keyRing.getEncoded();
+
+        SaveKeyRingResult result = new SaveKeyRingResult();
+
+        Uri queryUri = KeyRings.buildPublicKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId));
+
+        // get current _ID and data of key
+        long keyRingRowId = -1;
+        byte[] oldKeyRingData = null;
+        Cursor oldQuery = context.getContentResolver().query(queryUri,
+                new String[]{KeyRings._ID, KeyRings.KEY_RING_DATA}, null, null, null);
+        if (oldQuery != null) {
+            if (oldQuery.moveToFirst()) {
+                keyRingRowId = oldQuery.getLong(0);
+                oldKeyRingData = oldQuery.getBlob(1);
+            }
+            oldQuery.close();
+        }
+
+        int keyRingBackReference = -1;
+        if (keyRingRowId == -1) {
+            result.mNew = true;
+
+            ContentValues values = new ContentValues();
+            values.put(KeyRings.MASTER_KEY_ID, masterKeyId);
+            values.put(KeyRings.KEY_RING_DATA, keyRingData);
+
+            // insert new keyRing, its keys and userIds reference the resulting _ID
+            keyRingBackReference = operations.size();
+            keyRingRowId = NEW_KEY_RING_ROW_ID;
+            operations.add(ContentProviderOperation.newInsert(KeyRings.buildPublicKeyRingsUri())
+                    .withValues(values).build());
+        } else if (Arrays.equals(keyRingData, oldKeyRingData)) {
+            // nothing changed
+            return result;
+        } else {
+            result.mKeyRingUpdated = true;
+
+            // update the blob, keep the _ID so that loaded views of this keyRing stay valid
+            ContentValues values = new ContentValues();
+            values.put(KeyRings.KEY_RING_DATA, keyRingData);
+            operations.add(ContentProviderOperation
+                    .newUpdate(KeyRings.buildPublicKeyRingsUri(Long.toString(keyRingRowId)))
+                    .withValues(values).build());
+        }
+
+        addPublicKeyOperations(context, operations, result, keyRingRowId, keyRingBackReference,
+                keyRing);
+        addPublicUserIdOperations(context, operations, result, keyRingRowId, keyRingBackReference,
+                masterKey);
+
+        for (PGPSignature certification : new IterableIterator<PGPSignature>(masterKey.getSignaturesOfType(PGPSignature.POSITIVE_CERTIFICATION))) {
+            //TODO: how to do this?? we need to verify the signatures again and again when they are displayed...
+//            if (certification.verify
+//            operations.add(buildPublicKeyOperations(context, keyRingRowId, key, rank));
+        }
+
+        return result;
+    }
+
+    /**
+     * Adds operations that bring the stored keys of a keyRing in line with the given one. Keys are
+     * matched by keyId, only keys with different data or rank are updated.
+     */
+    @SuppressWarnings("unchecked")
+    private static void addPublicKeyOperations(Context context,
+                                               ArrayList<ContentProviderOperation> operations,
+                                               SaveKeyRingResult result, long keyRingRowId,
+                                               int keyRingBackReference, PGPPublicKeyRing keyRing)
+            throws IOException {
+        String keyRingRowIdString = Long.toString(keyRingRowId);
+
+        // keyId -> {_ID, rank} and keyId -> data of stored keys
+        HashMap<Long, long[]> oldKeys = new HashMap<Long, long[]>();
+        HashMap<Long, byte[]> oldKeyData = new HashMap<Long, byte[]>();
+        if (!result.mNew) {
+            Cursor cursor = context.getContentResolver().query(
+                    Keys.buildPublicKeysUri(keyRingRowIdString),
+                    new String[]{Keys._ID, Keys.KEY_ID, Keys.RANK, Keys.KEY_DATA}, null, null, null);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    oldKeys.put(cursor.getLong(1), new long[]{cursor.getLong(0), cursor.getLong(2)});
+                    oldKeyData.put(cursor.getLong(1), cursor.getBlob(3));
+                }
+                cursor.close();
+            }
+        }
+
+        int rank = 0;
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
+            long[] oldKey = oldKeys.remove(key.getKeyID());
+            if (oldKey == null) {
+                operations.add(buildPublicKeyOperations(context, keyRingRowId,
+                        keyRingBackReference, key, rank));
+                result.mKeysAdded++;
+            } else if (oldKey[1] != rank
+                    || !Arrays.equals(oldKeyData.get(key.getKeyID()), key.getEncoded())) {
+                Uri uri = Keys.buildPublicKeysUri(keyRingRowIdString, Long.toString(oldKey[0]));
+                operations.add(ContentProviderOperation.newUpdate(uri)
+                        .withValues(buildPublicKeyValues(keyRingRowId, key, rank)).build());
+                result.mKeysUpdated++;
+            }
+            ++rank;
+        }
+
+        // keys no longer contained in the keyRing
+        for (long[] oldKey : oldKeys.values()) {
+            Uri uri = Keys.buildPublicKeysUri(keyRingRowIdString, Long.toString(oldKey[0]));
+            operations.add(ContentProviderOperation.newDelete(uri).build());
+            result.mKeysRemoved++;
+        }
+    }
+
+    /**
+     * Adds operations that bring the stored userIds of a keyRing in line with the ones of the given
+     * master key. UserIds are matched by rank.
+     */
+    @SuppressWarnings("unchecked")
+    private static void addPublicUserIdOperations(Context context,
+                                                  ArrayList<ContentProviderOperation> operations,
+                                                  SaveKeyRingResult result, long keyRingRowId,
+                                                  int keyRingBackReference, PGPPublicKey masterKey) {
+        String keyRingRowIdString = Long.toString(keyRingRowId);
+
+        // rank -> _ID and rank -> userId of stored userIds
+        HashMap<Integer, Long> oldRowIds = new HashMap<Integer, Long>();
+        HashMap<Integer, String> oldUserIds = new HashMap<Integer, String>();
+        if (!result.mNew) {
+            Cursor cursor = context.getContentResolver().query(
+                    UserIds.buildPublicUserIdsUri(keyRingRowIdString),
+                    new String[]{UserIds._ID, UserIds.RANK, UserIds.USER_ID}, null, null, null);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    oldRowIds.put(cursor.getInt(1), cursor.getLong(0));
+                    oldUserIds.put(cursor.getInt(1), cursor.getString(2));
+                }
+                cursor.close();
+            }
+        }
+
+        int userIdRank = 0;
+        for (String userId : new IterableIterator<String>(masterKey.getUserIDs())) {
+            Long oldRowId = oldRowIds.remove(userIdRank);
+            if (oldRowId == null) {
+                operations.add(buildPublicUserIdOperations(context, keyRingRowId,
+                        keyRingBackReference, userId, userIdRank));
+                result.mUserIdsAdded++;
+            } else if (!userId.equals(oldUserIds.get(userIdRank))) {
+                ContentValues values = new ContentValues();
+                values.put(UserIds.USER_ID, userId);
+                values.put(UserIds.EMAIL, getEmailOfUserId(userId));
+                Uri uri = UserIds.buildPublicUserIdsUri(keyRingRowIdString, Long.toString(oldRowId));
+                operations.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
+                result.mUserIdsUpdated++;
+            }
+            ++userIdRank;
+        }
+
+        // userIds no longer contained in the keyRing
+        for (Long oldRowId : oldRowIds.values()) {
+            Uri uri = UserIds.buildPublicUserIdsUri(keyRingRowIdString, Long.toString(oldRowId));
+            operations.add(ContentProviderOperation.newDelete(uri).build());
+            result.mUserIdsRemoved++;
+        }
     }
 
     /**
@@ -297,7 +1007,24 @@ public class ProviderHelper {
      * Build ContentProviderOperation to add PGPPublicKey to database corresponding to a keyRing
      */
     private static ContentProviderOperation buildPublicKeyOperations(Context context,
-                                                                     long keyRingRowId, PGPPublicKey key, int rank) throws IOException {
+                                                                     long keyRingRowId, int keyRingBackReference, PGPPublicKey key, int rank) throws IOException {
+        ContentValues values = buildPublicKeyValues(keyRingRowId, key, rank);
+
+        Uri uri = Keys.buildPublicKeysUri(Long.toString(keyRingRowId));
+
+        ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(uri)
+                .withValues(values);
+        if (keyRingBackReference != -1) {
+            builder.withValueBackReference(Keys.KEY_RING_ROW_ID, keyRingBackReference);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Build ContentValues of a PGPPublicKey corresponding to a keyRing
+     */
+    private static ContentValues buildPublicKeyValues(long keyRingRowId, PGPPublicKey key, int rank)
+            throws IOException {
         ContentValues values = new ContentValues();
         values.put(Keys.KEY_ID, key.getKeyID());
         values.put(Keys.IS_MASTER_KEY, key.isMasterKey());
@@ -310,30 +1037,36 @@ public class ProviderHelper {
         Date expiryDate = PgpKeyHelper.getExpiryDate(key);
         if (expiryDate != null) {
             values.put(Keys.EXPIRY, expiryDate.getTime() / 1000);
+        } else {
+            values.putNull(Keys.EXPIRY);
         }
         values.put(Keys.KEY_RING_ROW_ID, keyRingRowId);
         values.put(Keys.KEY_DATA, key.getEncoded());
         values.put(Keys.RANK, rank);
         values.put(Keys.FINGERPRINT, key.getFingerprint());
 
-        Uri uri = Keys.buildPublicKeysUri(Long.toString(keyRingRowId));
-
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return values;
     }
 
     /**
      * Build ContentProviderOperation to add PublicUserIds to database corresponding to a keyRing
      */
     private static ContentProviderOperation buildPublicUserIdOperations(Context context,
-                                                                        long keyRingRowId, String userId, int rank) {
+                                                                        long keyRingRowId, int keyRingBackReference, String userId, int rank) {
         ContentValues values = new ContentValues();
         values.put(UserIds.KEY_RING_ROW_ID, keyRingRowId);
         values.put(UserIds.USER_ID, userId);
         values.put(UserIds.RANK, rank);
+        values.put(UserIds.EMAIL, getEmailOfUserId(userId));
 
         Uri uri = UserIds.buildPublicUserIdsUri(Long.toString(keyRingRowId));
 
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(uri)
+                .withValues(values);
+        if (keyRingBackReference != -1) {
+            builder.withValueBackReference(UserIds.KEY_RING_ROW_ID, keyRingBackReference);
+        }
+        return builder.build();
     }
 
     /**
@@ -382,6 +1115,7 @@ public class ProviderHelper {
         values.put(UserIds.KEY_RING_ROW_ID, keyRingRowId);
         values.put(UserIds.USER_ID, userId);
         values.put(UserIds.RANK, rank);
+        values.put(UserIds.EMAIL, getEmailOfUserId(userId));
 
         Uri uri = UserIds.buildSecretUserIdsUri(Long.toString(keyRingRowId));
 
@@ -17,7 +17,7 @@
 
 package org.sufficientlysecure.keychain.service;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -31,11 +31,8 @@ import java.util.ArrayList;
 import java.util.GregorianCalendar;
 import java.util.List;
 
-import org.spongycastle.openpgp.PGPKeyRing;
-import org.spongycastle.openpgp.PGPObjectFactory;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.spongycastle.openpgp.PGPSecretKey;
-import org.spongycastle.openpgp.PGPUtil;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.R;
@@ -144,8 +141,11 @@ public class KeychainIntentService extends IntentService implements ProgressDial
     // delete file securely
     public static final String DELETE_FILE = "deleteFile";
 
-    // import key
+    // import key, if no list is given, keys are read from IMPORT_BYTES or the intent's data uri
     public static final String IMPORT_KEY_LIST = "import_key_list";
+    public static final String IMPORT_BYTES = "import_bytes";
+    // master key ids of the keys to import from IMPORT_BYTES or the data uri, all if not given
+    public static final String IMPORT_KEY_IDS = "import_key_ids";
 
     // export key
     public static final String EXPORT_OUTPUT_STREAM = "export_output_stream";
@@ -281,12 +281,18 @@ public class KeychainIntentService extends IntentService implements ProgressDial
                                     getString(R.string.error_external_storage_not_ready));
                         }
 
-                        inStream = new FileInputStream(inputFile);
+                        // file to file
                         File file = new File(inputFile);
+                        inStream = new FileInputStream(file);
                         inLength = file.length();
                         inputData = new InputData(inStream, inLength);
 
                         outStream = new FileOutputStream(outputFile);
+                        if (useAsciiArmor) {
+                            // armored output is written per byte
+                            outStream = new BufferedOutputStream(outStream,
+                                    Constants.DATA_BUFFER_SIZE);
+                        }
 
                         break;
 
@@ -294,8 +300,9 @@ public class KeychainIntentService extends IntentService implements ProgressDial
                         Uri providerUri = (Uri) data.getParcelable(ENCRYPT_PROVIDER_URI);
 
                         // InputStream
+                        // size from the provider, every byte of the stream is only read once
                         InputStream in = getContentResolver().openInputStream(providerUri);
-                        inLength = PgpHelper.getLengthOfStream(in);
+                        inLength = FileHelper.getFileSize(this, providerUri);
                         inputData = new InputData(in, inLength);
 
                         // OutputStream
@@ -323,6 +330,11 @@ public class KeychainIntentService extends IntentService implements ProgressDial
                 PgpSignEncrypt.Builder builder =
                         new PgpSignEncrypt.Builder(this, inputData, outStream);
                 builder.progress(this);
+                // files and streams are signed as binary data
+                builder.binaryInput(target != TARGET_BYTES);
+                // files and streams can be large, spread their processing over all cores
+                builder.pipelined(target != TARGET_BYTES
+                        && Runtime.getRuntime().availableProcessors() > 1);
 
                 if (generateSignature) {
                     Log.d(Constants.TAG, "generating signature...");
@@ -438,8 +450,9 @@ public class KeychainIntentService extends IntentService implements ProgressDial
 
                         // InputStream
                         inLength = -1;
-                        inStream = new FileInputStream(inputFile);
+                        // file to file
                         File file = new File(inputFile);
+                        inStream = new FileInputStream(file);
                         inLength = file.length();
                         inputData = new InputData(inStream, inLength);
 
@@ -452,8 +465,9 @@ public class KeychainIntentService extends IntentService implements ProgressDial
                         Uri providerUri = (Uri) data.getParcelable(ENCRYPT_PROVIDER_URI);
 
                         // InputStream
+                        // size from the provider, every byte of the stream is only read once
                         InputStream in = getContentResolver().openInputStream(providerUri);
-                        inLength = PgpHelper.getLengthOfStream(in);
+                        inLength = FileHelper.getFileSize(this, providerUri);
                         inputData = new InputData(in, inLength);
 
                         // OutputStream
@@ -643,12 +657,34 @@ public class KeychainIntentService extends IntentService implements ProgressDial
             }
         } else if (ACTION_IMPORT_KEYRING.equals(action)) {
             try {
-                List<ImportKeysListEntry> entries = data.getParcelableArrayList(IMPORT_KEY_LIST);
-
                 Bundle resultData = new Bundle();
 
                 PgpImportExport pgpImportExport = new PgpImportExport(this, this);
-                resultData = pgpImportExport.importKeyRings(entries);
+                if (data.containsKey(IMPORT_KEY_LIST)) {
+                    List<ImportKeysListEntry> entries = data.getParcelableArrayList(IMPORT_KEY_LIST);
+
+                    resultData = pgpImportExport.importKeyRings(entries);
+                } else {
+                    // import the selected keys while reading, without parsing them beforehand
+                    long[] masterKeyIds = data.getLongArray(IMPORT_KEY_IDS);
+
+                    long size;
+                    InputStream in;
+                    if (data.containsKey(IMPORT_BYTES)) {
+                        byte[] bytes = data.getByteArray(IMPORT_BYTES);
+                        size = bytes.length;
+                        in = new ByteArrayInputStream(bytes);
+                    } else {
+                        size = FileHelper.getFileSize(this, dataUri);
+                        in = getContentResolver().openInputStream(dataUri);
+                    }
+                    try {
+                        resultData = pgpImportExport.importKeyRings(new InputData(in, size),
+                                masterKeyIds);
+                    } finally {
+                        in.close();
+                    }
+                }
 
                 sendMessageToHandler(KeychainIntentServiceHandler.MESSAGE_OKAY, resultData);
             } catch (Exception e) {
@@ -734,59 +770,38 @@ public class KeychainIntentService extends IntentService implements ProgressDial
                 ArrayList<ImportKeysListEntry> entries = data.getParcelableArrayList(DOWNLOAD_KEY_LIST);
                 String keyServer = data.getString(DOWNLOAD_KEY_SERVER);
 
-                // this downloads the keys and places them into the ImportKeysListEntry entries
+                // this downloads the keys, in the order of the entries
                 HkpKeyServer server = new HkpKeyServer(keyServer);
 
+                ArrayList<Long> keyIds = new ArrayList<Long>();
                 for (ImportKeysListEntry entry : entries) {
-                    byte[] downloadedKey = server.get(entry.getKeyId()).getBytes();
-
-                    /**
-                     * TODO: copied from ImportKeysListLoader
-                     *
-                     *
-                     * this parses the downloaded key
-                     */
-                    // need to have access to the bufferedInput, so we can reuse it for the possible
-                    // PGPObject chunks after the first one, e.g. files with several consecutive ASCII
-                    // armour blocks
-                    BufferedInputStream bufferedInput = new BufferedInputStream(new ByteArrayInputStream(downloadedKey));
-                    try {
-
-                        // read all available blocks... (asc files can contain many blocks with BEGIN END)
-                        while (bufferedInput.available() > 0) {
-                            InputStream in = PGPUtil.getDecoderStream(bufferedInput);
-                            PGPObjectFactory objectFactory = new PGPObjectFactory(in);
-
-                            // go through all objects in this block
-                            Object obj;
-                            while ((obj = objectFactory.nextObject()) != null) {
-                                Log.d(Constants.TAG, "Found class: " + obj.getClass());
-
-                                if (obj instanceof PGPKeyRing) {
-                                    PGPKeyRing newKeyring = (PGPKeyRing) obj;
-
-                                    entry.setBytes(newKeyring.getEncoded());
-                                } else {
-                                    Log.e(Constants.TAG, "Object not recognized as PGPKeyRing!");
-                                }
-                            }
-                        }
-                    } catch (Exception e) {
-                        Log.e(Constants.TAG, "Exception on parsing key file!", e);
+                    keyIds.add(entry.getKeyId());
+                }
+                ArrayList<String> downloadedKeys = server.get(keyIds);
+                server.shutdown();
+
+                ByteArrayOutputStream downloaded = new ByteArrayOutputStream();
+                for (int i = 0; i < entries.size(); i++) {
+                    ImportKeysListEntry entry = entries.get(i);
+                    if (downloadedKeys.get(i) == null) {
+                        Log.e(Constants.TAG, "Key " + entry.getKeyId() + " could not be downloaded!");
+                        continue;
+                    }
+                    // consecutive armour blocks are read one after another by the import
+                    if (downloaded.size() > 0) {
+                        downloaded.write('\n');
                     }
+                    downloaded.write(downloadedKeys.get(i).getBytes());
                 }
+                byte[] downloadedBytes = downloaded.toByteArray();
 
-                Intent importIntent = new Intent(this, KeychainIntentService.class);
-                importIntent.setAction(ACTION_IMPORT_KEYRING);
-                Bundle importData = new Bundle();
-                importData.putParcelableArrayList(IMPORT_KEY_LIST, entries);
-                importIntent.putExtra(EXTRA_DATA, importData);
-                importIntent.putExtra(EXTRA_MESSENGER, mMessenger);
-
-                // now import it with this service
-                onHandleIntent(importIntent);
+                // import everything downloaded while parsing it, the key ids of the entries
+                // may be short ids from the server's index, which do not match master key ids
+                PgpImportExport pgpImportExport = new PgpImportExport(this, this);
+                Bundle resultData = pgpImportExport.importKeyRings(new InputData(
+                        new ByteArrayInputStream(downloadedBytes), downloadedBytes.length), null);
 
-                // result is handled in ACTION_IMPORT_KEYRING
+                sendMessageToHandler(KeychainIntentServiceHandler.MESSAGE_OKAY, resultData);
             } catch (Exception e) {
                 sendErrorToHandler(e);
             }
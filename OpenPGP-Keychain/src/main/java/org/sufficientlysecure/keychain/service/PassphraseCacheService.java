@@ -17,9 +17,12 @@
 
 package org.sufficientlysecure.keychain.service;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 
 import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPPrivateKey;
@@ -33,6 +36,7 @@ import org.sufficientlysecure.keychain.helper.Preferences;
 import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 
+import android.app.ActivityManager;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.Service;
@@ -51,10 +55,12 @@ import android.os.RemoteException;
 import android.util.Log;
 
 /**
- * This service runs in its own process, but is available to all other processes as the main
- * passphrase cache. Use the static methods addCachedPassphrase and getCachedPassphrase for
- * convenience.
- * 
+ * This service runs in the main process of the app and is available to all other processes as
+ * the main passphrase cache. Use the static methods addCachedPassphrase and getCachedPassphrase
+ * for convenience.
+ * <p/>
+ * Callers in the same process as the service access the running instance directly, callers in
+ * other processes (e.g. the remote API) send an intent to the service and wait for its answer.
  */
 public class PassphraseCacheService extends Service {
     public static final String TAG = Constants.TAG + ": PassphraseCacheService";
@@ -79,6 +85,52 @@ public class PassphraseCacheService extends Service {
 
     private HashMap<Long, String> mPassphraseCache = new HashMap<Long, String>();
 
+    /**
+     * Guards mPassphraseCache and sInstance, so a passphrase can not be added to an instance that
+     * is being stopped
+     */
+    private static final Object sLock = new Object();
+
+    /**
+     * Running instance of this service, only set in the process the service is running in
+     */
+    private static PassphraseCacheService sInstance;
+
+    /**
+     * Looks up passphrases requested by other processes, this may query the database and test
+     * the empty passphrase, which must not be done on the main thread
+     */
+    private HandlerThread mGetThread;
+    private Handler mGetHandler;
+
+    /**
+     * Id of the last start command, the service is only stopped if there has been no newer one
+     */
+    private int mLastStartId;
+
+    /**
+     * Name of the current process, lazily initialized by isServiceProcess()
+     */
+    private static String sProcessName;
+
+    /**
+     * Cache of already unlocked private keys, keyed by (sub)key id. PGPPrivateKey objects can not
+     * be send over process boundaries, so it is only used in the process of this service, where
+     * the timeout alarms of the passphrases also evict the private keys of their master key. An
+     * entry is only used for exactly the secret key data it has been unlocked from, and all
+     * entries are cleared when key rings are written.
+     */
+    private static final HashMap<Long, CachedPrivateKey> sPrivateKeyCache =
+            new HashMap<Long, CachedPrivateKey>();
+
+    private static class CachedPrivateKey {
+        long masterKeyId;
+        byte[] secretKeyData;
+        PGPPrivateKey privateKey;
+        String passphrase;
+        long expiryTime;
+    }
+
     Context mContext;
 
     /**
@@ -93,9 +145,19 @@ public class PassphraseCacheService extends Service {
     public static void addCachedPassphrase(Context context, long keyId, String passphrase) {
         Log.d(TAG, "cacheNewPassphrase() for " + keyId);
 
+        long ttl = Preferences.getPreferences(context).getPassPhraseCacheTtl();
+
+        // service is already running in this process, add it directly
+        synchronized (sLock) {
+            if (sInstance != null) {
+                sInstance.addCachedPassphraseImpl(keyId, passphrase, ttl);
+                return;
+            }
+        }
+
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_ADD);
-        intent.putExtra(EXTRA_TTL, Preferences.getPreferences(context).getPassPhraseCacheTtl());
+        intent.putExtra(EXTRA_TTL, ttl);
         intent.putExtra(EXTRA_PASSPHRASE, passphrase);
         intent.putExtra(EXTRA_KEY_ID, keyId);
 
@@ -103,7 +165,8 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Gets a cached passphrase from memory by sending an intent to the service. This method is
+     * Gets a cached passphrase from memory. In the process of the service this is a direct lookup,
+     * from other processes an intent is send to the service. In this case, this method is
      * designed to wait until the service returns the passphrase.
      * 
      * @param context
@@ -113,6 +176,29 @@ public class PassphraseCacheService extends Service {
     public static String getCachedPassphrase(Context context, long keyId) {
         Log.d(TAG, "getCachedPassphrase() get masterKeyId for " + keyId);
 
+        if (isServiceProcess(context)) {
+            PassphraseCacheService service;
+            synchronized (sLock) {
+                service = sInstance;
+            }
+            if (service != null) {
+                return service.getCachedPassphraseImpl(keyId);
+            }
+
+            // service is not running, so nothing is cached, but keys without passphrase
+            long masterKeyId = getMasterKeyIdForCache(context, keyId);
+            if (masterKeyId == Id.key.none) {
+                return null;
+            }
+            if (masterKeyId != Id.key.symmetric && !hasPassphrase(context, masterKeyId)) {
+                Log.d(Constants.TAG, "Key has no passphrase! Caches and returns empty passphrase!");
+
+                addCachedPassphrase(context, masterKeyId, "");
+                return "";
+            }
+            return null;
+        }
+
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_GET);
 
@@ -158,6 +244,56 @@ public class PassphraseCacheService extends Service {
         }
     }
 
+    /**
+     * Checks if the calling code runs in the same process as this service.
+     *
+     * @param context
+     * @return true if the service is (or would be) running in the current process
+     */
+    private static boolean isServiceProcess(Context context) {
+        if (sProcessName == null) {
+            int pid = android.os.Process.myPid();
+            ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            List<ActivityManager.RunningAppProcessInfo> processes = am.getRunningAppProcesses();
+            if (processes != null) {
+                for (ActivityManager.RunningAppProcessInfo processInfo : processes) {
+                    if (processInfo.pid == pid) {
+                        sProcessName = processInfo.processName;
+                        break;
+                    }
+                }
+            }
+            if (sProcessName == null) {
+                return false;
+            }
+        }
+
+        // the service has no android:process set, thus runs in the default process of the app
+        return sProcessName.equals(context.getApplicationInfo().processName);
+    }
+
+    /**
+     * Gets the master key id which is used as an identifier for cached passphrases.
+     *
+     * @param context
+     * @param keyId
+     * @return master key id or Id.key.none if the key is not available
+     */
+    private static long getMasterKeyIdForCache(Context context, long keyId) {
+        if (keyId == Id.key.symmetric) {
+            return keyId;
+        }
+        PGPSecretKeyRing keyRing = ProviderHelper.getPGPSecretKeyRingByKeyId(context, keyId);
+        if (keyRing == null) {
+            return Id.key.none;
+        }
+        PGPSecretKey masterKey = PgpKeyHelper.getMasterKey(keyRing);
+        if (masterKey == null) {
+            return Id.key.none;
+        }
+        return masterKey.getKeyID();
+    }
+
     /**
      * Internal implementation to get cached passphrase.
      * 
@@ -167,29 +303,36 @@ public class PassphraseCacheService extends Service {
     private String getCachedPassphraseImpl(long keyId) {
         Log.d(TAG, "getCachedPassphraseImpl() get masterKeyId for " + keyId);
 
+        long ttl = Preferences.getPreferences(this).getPassPhraseCacheTtl();
+
+        // fast path: keyId is already the master key id of a cached passphrase
+        String cachedPassphrase;
+        synchronized (sLock) {
+            cachedPassphrase = mPassphraseCache.get(keyId);
+        }
+        if (cachedPassphrase != null) {
+            // set it again to reset the cache life cycle
+            addCachedPassphraseImpl(keyId, cachedPassphrase, ttl);
+            return cachedPassphrase;
+        }
+
         // try to get master key id which is used as an identifier for cached passphrases
-        long masterKeyId = keyId;
-        if (masterKeyId != Id.key.symmetric) {
-            PGPSecretKeyRing keyRing = ProviderHelper.getPGPSecretKeyRingByKeyId(this, keyId);
-            if (keyRing == null) {
-                return null;
-            }
-            PGPSecretKey masterKey = PgpKeyHelper.getMasterKey(keyRing);
-            if (masterKey == null) {
-                return null;
-            }
-            masterKeyId = masterKey.getKeyID();
+        long masterKeyId = getMasterKeyIdForCache(this, keyId);
+        if (masterKeyId == Id.key.none) {
+            return null;
         }
         Log.d(TAG, "getCachedPassphraseImpl() for masterKeyId " + masterKeyId);
 
         // get cached passphrase
-        String cachedPassphrase = mPassphraseCache.get(masterKeyId);
+        synchronized (sLock) {
+            cachedPassphrase = mPassphraseCache.get(masterKeyId);
+        }
         if (cachedPassphrase == null) {
             // if key has no passphrase -> cache and return empty passphrase
             if (!hasPassphrase(this, masterKeyId)) {
                 Log.d(Constants.TAG, "Key has no passphrase! Caches and returns empty passphrase!");
 
-                addCachedPassphrase(this, masterKeyId, "");
+                addCachedPassphraseImpl(masterKeyId, "", ttl);
                 return "";
             } else {
                 return null;
@@ -197,11 +340,148 @@ public class PassphraseCacheService extends Service {
         }
         // set it again to reset the cache life cycle
         Log.d(TAG, "Cache passphrase again when getting it!");
-        addCachedPassphrase(this, masterKeyId, cachedPassphrase);
+        addCachedPassphraseImpl(masterKeyId, cachedPassphrase, ttl);
 
         return cachedPassphrase;
     }
 
+    /**
+     * Internal implementation to add a passphrase to memory and (re)start its timeout alarm.
+     *
+     * @param keyId
+     * @param passphrase
+     * @param ttl
+     */
+    private void addCachedPassphraseImpl(long keyId, String passphrase, long ttl) {
+        // add keyId and passphrase to memory
+        synchronized (sLock) {
+            mPassphraseCache.put(keyId, passphrase);
+        }
+
+        if (ttl > 0) {
+            // register new alarm with keyId for this passphrase
+            long triggerTime = new Date().getTime() + (ttl * 1000);
+            AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
+            am.set(AlarmManager.RTC_WAKEUP, triggerTime, buildIntent(this, keyId));
+        }
+    }
+
+    /**
+     * Extracts the private key from the given secret key. If caching of unlocked private keys is
+     * enabled in the preferences and this is the process of the service, an already unlocked
+     * private key is returned from memory instead of running the (expensive) S2K key derivation
+     * again. A cached key is only returned if the secret key data and the passphrase equal the
+     * ones it has been unlocked from.
+     *
+     * @param context
+     * @param masterKeyId master key id of the key ring containing secretKey
+     * @param secretKey
+     * @param passphrase
+     * @return private key or null
+     * @throws PGPException if the passphrase is wrong
+     */
+    public static PGPPrivateKey extractPrivateKey(Context context, long masterKeyId,
+                                                  PGPSecretKey secretKey, String passphrase)
+            throws PGPException {
+        Preferences prefs = Preferences.getPreferences(context);
+        long keyId = secretKey.getKeyID();
+
+        byte[] secretKeyData = null;
+        if (prefs.getPassPhraseCachePrivateKeys() && isServiceProcess(context)) {
+            try {
+                secretKeyData = secretKey.getEncoded();
+            } catch (IOException e) {
+                Log.e(TAG, "Secret key could not be encoded, not caching it!", e);
+            }
+        }
+
+        if (secretKeyData != null) {
+            PGPPrivateKey cached = getCachedPrivateKey(keyId, masterKeyId, secretKeyData,
+                    passphrase);
+            if (cached != null) {
+                Log.d(TAG, "extractPrivateKey() using cached private key for " + keyId);
+                return cached;
+            }
+        }
+
+        PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
+                Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passphrase.toCharArray());
+        PGPPrivateKey privateKey = secretKey.extractPrivateKey(keyDecryptor);
+
+        if (secretKeyData != null && privateKey != null) {
+            addCachedPrivateKey(keyId, masterKeyId, secretKeyData, privateKey, passphrase,
+                    prefs.getPassPhraseCacheTtl());
+        }
+
+        return privateKey;
+    }
+
+    private static PGPPrivateKey getCachedPrivateKey(long keyId, long masterKeyId,
+                                                     byte[] secretKeyData, String passphrase) {
+        synchronized (sPrivateKeyCache) {
+            CachedPrivateKey entry = sPrivateKeyCache.get(keyId);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiryTime < System.currentTimeMillis()
+                    || entry.masterKeyId != masterKeyId
+                    || !Arrays.equals(entry.secretKeyData, secretKeyData)) {
+                // timed out, or the key has been changed since it has been unlocked
+                Log.d(TAG, "Private key " + keyId + " outdated, removed from memory!");
+                sPrivateKeyCache.remove(keyId);
+                return null;
+            }
+            if (!entry.passphrase.equals(passphrase)) {
+                return null;
+            }
+            return entry.privateKey;
+        }
+    }
+
+    private static void addCachedPrivateKey(long keyId, long masterKeyId, byte[] secretKeyData,
+                                            PGPPrivateKey privateKey, String passphrase, long ttl) {
+        long now = System.currentTimeMillis();
+
+        synchronized (sPrivateKeyCache) {
+            // evict timed out entries
+            for (Iterator<CachedPrivateKey> it = sPrivateKeyCache.values().iterator(); it.hasNext(); ) {
+                if (it.next().expiryTime < now) {
+                    it.remove();
+                }
+            }
+
+            CachedPrivateKey entry = new CachedPrivateKey();
+            entry.masterKeyId = masterKeyId;
+            entry.secretKeyData = secretKeyData;
+            entry.privateKey = privateKey;
+            entry.passphrase = passphrase;
+            entry.expiryTime = now + (ttl * 1000);
+            sPrivateKeyCache.put(keyId, entry);
+        }
+    }
+
+    /**
+     * Removes all unlocked private keys from memory of the current process
+     */
+    public static void clearCachedPrivateKeys() {
+        synchronized (sPrivateKeyCache) {
+            sPrivateKeyCache.clear();
+        }
+    }
+
+    /**
+     * Removes the unlocked private keys of one key ring from memory of the current process
+     */
+    private static void clearCachedPrivateKeys(long masterKeyId) {
+        synchronized (sPrivateKeyCache) {
+            for (Iterator<CachedPrivateKey> it = sPrivateKeyCache.values().iterator(); it.hasNext(); ) {
+                if (it.next().masterKeyId == masterKeyId) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
     /**
      * Checks if key has a passphrase.
      * 
@@ -288,6 +568,7 @@ public class PassphraseCacheService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "onStartCommand()");
+        mLastStartId = startId;
 
         // register broadcastreceiver
         registerReceiver();
@@ -302,30 +583,27 @@ public class PassphraseCacheService extends Service {
                         "Received ACTION_PASSPHRASE_CACHE_ADD intent in onStartCommand() with keyId: "
                                 + keyId + ", ttl: " + ttl);
 
-                // add keyId and passphrase to memory
-                mPassphraseCache.put(keyId, passphrase);
-
-                if (ttl > 0) {
-                    // register new alarm with keyId for this passphrase
-                    long triggerTime = new Date().getTime() + (ttl * 1000);
-                    AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
-                    am.set(AlarmManager.RTC_WAKEUP, triggerTime, buildIntent(this, keyId));
-                }
+                addCachedPassphraseImpl(keyId, passphrase, ttl);
             } else if (ACTION_PASSPHRASE_CACHE_GET.equals(intent.getAction())) {
-                long keyId = intent.getLongExtra(EXTRA_KEY_ID, -1);
-                Messenger messenger = intent.getParcelableExtra(EXTRA_MESSENGER);
-
-                String passphrase = getCachedPassphraseImpl(keyId);
-
-                Message msg = Message.obtain();
-                Bundle bundle = new Bundle();
-                bundle.putString(EXTRA_PASSPHRASE, passphrase);
-                msg.obj = bundle;
-                try {
-                    messenger.send(msg);
-                } catch (RemoteException e) {
-                    Log.e(Constants.TAG, "Sending message failed", e);
-                }
+                final long keyId = intent.getLongExtra(EXTRA_KEY_ID, -1);
+                final Messenger messenger = intent.getParcelableExtra(EXTRA_MESSENGER);
+
+                mGetHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        String passphrase = getCachedPassphraseImpl(keyId);
+
+                        Message msg = Message.obtain();
+                        Bundle bundle = new Bundle();
+                        bundle.putString(EXTRA_PASSPHRASE, passphrase);
+                        msg.obj = bundle;
+                        try {
+                            messenger.send(msg);
+                        } catch (RemoteException e) {
+                            Log.e(Constants.TAG, "Sending message failed", e);
+                        }
+                    }
+                });
             } else {
                 Log.e(Constants.TAG, "Intent or Intent Action not supported!");
             }
@@ -341,15 +619,25 @@ public class PassphraseCacheService extends Service {
      * @param keyId
      */
     private void timeout(Context context, long keyId) {
-        // remove passphrase corresponding to keyId from memory
-        mPassphraseCache.remove(keyId);
+        clearCachedPrivateKeys(keyId);
 
-        Log.d(TAG, "Timeout of keyId " + keyId + ", removed from memory!");
+        synchronized (sLock) {
+            // remove passphrase corresponding to keyId from memory
+            mPassphraseCache.remove(keyId);
 
-        // stop whole service if no cached passphrases remaining
-        if (mPassphraseCache.isEmpty()) {
-            Log.d(TAG, "No passphrases remaining in memory, stopping service!");
-            stopSelf();
+            Log.d(TAG, "Timeout of keyId " + keyId + ", removed from memory!");
+
+            // stop whole service if no cached passphrases remaining, while holding the lock no
+            // passphrase can be added in this process
+            if (!mPassphraseCache.isEmpty()) {
+                return;
+            }
+            // only stops if no start command, e.g. an added passphrase, arrived since the last one
+            if (stopSelfResult(mLastStartId)) {
+                Log.d(TAG, "No passphrases remaining in memory, stopping service!");
+                sInstance = null;
+                clearCachedPrivateKeys();
+            }
         }
     }
 
@@ -357,6 +645,14 @@ public class PassphraseCacheService extends Service {
     public void onCreate() {
         super.onCreate();
         mContext = this;
+
+        mGetThread = new HandlerThread("PassphraseCacheGetThread");
+        mGetThread.start();
+        mGetHandler = new Handler(mGetThread.getLooper());
+
+        synchronized (sLock) {
+            sInstance = this;
+        }
         Log.d(Constants.TAG, "PassphraseCacheService, onCreate()");
     }
 
@@ -365,6 +661,20 @@ public class PassphraseCacheService extends Service {
         super.onDestroy();
         Log.d(Constants.TAG, "PassphraseCacheService, onDestroy()");
 
+        synchronized (sLock) {
+            if (sInstance == this) {
+                sInstance = null;
+            }
+        }
+
+        // answer pending requests before quitting the thread
+        mGetHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mGetThread.quit();
+            }
+        });
+
         unregisterReceiver(mIntentReceiver);
     }
 
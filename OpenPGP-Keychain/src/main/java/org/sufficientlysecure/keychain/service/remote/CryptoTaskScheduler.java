@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service.remote;
+
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs crypto operations of remote callers on a fixed number of worker threads.
+ *
+ * Every calling UID has its own bounded queue. Workers take tasks from these queues in weighted
+ * round-robin order, so one app sending many requests can not starve the others. If the queue of
+ * a UID is full, or too many tasks are waiting in total, new tasks are rejected right away, so
+ * only a bounded number of binder threads waits for results.
+ */
+public class CryptoTaskScheduler {
+    private static final int DEFAULT_WEIGHT = 1;
+
+    private final int mMaxQueuedPerUid;
+    private final int mMaxQueued;
+
+    private final Object mLock = new Object();
+    /** calling uid -> pending tasks of this uid */
+    private final HashMap<Integer, LinkedList<Task<?>>> mQueues =
+            new HashMap<Integer, LinkedList<Task<?>>>();
+    /** uids with pending tasks, in the order they are served */
+    private final LinkedList<Integer> mRoundRobin = new LinkedList<Integer>();
+    private final HashMap<Integer, Integer> mWeights = new HashMap<Integer, Integer>();
+    /** tasks left for the uid at the head of mRoundRobin before moving on to the next one */
+    private int mCredit = 0;
+    /** number of tasks in all queues */
+    private int mQueuedCount = 0;
+    private boolean mShutdown = false;
+
+    // metrics, guarded by mLock
+    private long mExecutedCount = 0;
+    private long mRejectedCount = 0;
+    private long mTotalWaitMillis = 0;
+    private long mTotalExecMillis = 0;
+
+    private final Thread[] mWorkers;
+
+    /**
+     * @param maxQueuedPerUid tasks of one uid waiting for a worker before new ones are rejected
+     * @param maxQueued       tasks of all uids waiting for a worker before new ones are rejected
+     */
+    public CryptoTaskScheduler(int threadCount, int maxQueuedPerUid, int maxQueued) {
+        mMaxQueuedPerUid = maxQueuedPerUid;
+        mMaxQueued = maxQueued;
+
+        mWorkers = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            mWorkers[i] = new Thread(new Worker(), "CryptoWorker-" + i);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Sets how many tasks of this uid are executed in a row before the next uid is served
+     */
+    public void setWeight(int uid, int weight) {
+        synchronized (mLock) {
+            mWeights.put(uid, Math.max(1, weight));
+        }
+    }
+
+    /**
+     * Executes the callable on a worker thread and blocks until it is done.
+     *
+     * @param descriptors descriptors used by the callable, closed if it is cancelled before it
+     *                    started, so the caller does not wait for the other end of its pipes
+     * @throws RejectedExecutionException if too many tasks of this uid or in total are pending
+     * @throws ExecutionException         if the callable threw an exception
+     * @throws CancellationException      if the scheduler has been shut down before the task
+     *                                    started
+     */
+    public <T> T execute(int uid, Callable<T> callable, ParcelFileDescriptor... descriptors)
+            throws InterruptedException, ExecutionException {
+        return execute(uid, false, callable, descriptors);
+    }
+
+    /**
+     * Like {@link #execute(int, Callable, ParcelFileDescriptor...)}, but for the next part of an
+     * operation whose previous part has just been executed. The calling thread is already
+     * waiting for this operation, so the queue limits are not applied again. The task is queued
+     * behind the tasks of other uids, splitting a long operation into parts lets them run in
+     * between.
+     */
+    public <T> T executeFollowUp(int uid, Callable<T> callable,
+                                 ParcelFileDescriptor... descriptors)
+            throws InterruptedException, ExecutionException {
+        return execute(uid, true, callable, descriptors);
+    }
+
+    private <T> T execute(int uid, boolean followUp, Callable<T> callable,
+                          ParcelFileDescriptor[] descriptors)
+            throws InterruptedException, ExecutionException {
+        Task<T> task = new Task<T>(uid, callable, descriptors);
+
+        synchronized (mLock) {
+            if (mShutdown) {
+                throw new RejectedExecutionException("scheduler has been shut down");
+            }
+
+            LinkedList<Task<?>> queue = mQueues.get(uid);
+            if (queue == null) {
+                queue = new LinkedList<Task<?>>();
+                mQueues.put(uid, queue);
+            }
+            if (!followUp && queue.size() >= mMaxQueuedPerUid) {
+                mRejectedCount++;
+                throw new RejectedExecutionException("too many pending tasks for uid " + uid);
+            }
+            if (!followUp && mQueuedCount >= mMaxQueued) {
+                mRejectedCount++;
+                throw new RejectedExecutionException("too many pending tasks");
+            }
+
+            if (queue.isEmpty()) {
+                mRoundRobin.addLast(uid);
+            }
+            queue.addLast(task);
+            mQueuedCount++;
+            mLock.notify();
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            // binder thread gives up, do not let the operation start afterwards
+            if (task.cancelIfNotStarted()) {
+                removeTask(task);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Removes a cancelled task from its queue, so it does not count as pending anymore
+     */
+    private void removeTask(Task<?> task) {
+        synchronized (mLock) {
+            LinkedList<Task<?>> queue = mQueues.get(task.mUid);
+            if (queue == null || !queue.remove(task)) {
+                return;
+            }
+            mQueuedCount--;
+
+            if (queue.isEmpty()) {
+                mQueues.remove(task.mUid);
+                if (!mRoundRobin.isEmpty() && mRoundRobin.getFirst() == task.mUid) {
+                    mCredit = 0;
+                }
+                mRoundRobin.remove((Integer) task.mUid);
+            }
+        }
+    }
+
+    /**
+     * Stops all workers, tasks not started yet are cancelled
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            for (LinkedList<Task<?>> queue : mQueues.values()) {
+                for (Task<?> task : queue) {
+                    task.cancelIfNotStarted();
+                }
+            }
+            mQueues.clear();
+            mRoundRobin.clear();
+            mQueuedCount = 0;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Takes the next task in weighted round-robin order, blocks until one is available.
+     *
+     * @return null if the scheduler has been shut down
+     */
+    private Task<?> takeTask() throws InterruptedException {
+        synchronized (mLock) {
+            while (mRoundRobin.isEmpty() && !mShutdown) {
+                mLock.wait();
+            }
+            if (mShutdown) {
+                return null;
+            }
+
+            int uid = mRoundRobin.getFirst();
+            if (mCredit <= 0) {
+                Integer weight = mWeights.get(uid);
+                mCredit = (weight != null) ? weight : DEFAULT_WEIGHT;
+            }
+
+            LinkedList<Task<?>> queue = mQueues.get(uid);
+            Task<?> task = queue.removeFirst();
+            mQueuedCount--;
+            mCredit--;
+
+            if (queue.isEmpty()) {
+                mQueues.remove(uid);
+                mRoundRobin.removeFirst();
+                mCredit = 0;
+            } else if (mCredit <= 0) {
+                // credit used up, serve the next uid
+                mRoundRobin.addLast(mRoundRobin.removeFirst());
+            }
+
+            return task;
+        }
+    }
+
+    private void taskDone(Task<?> task, long waitMillis, long execMillis) {
+        synchronized (mLock) {
+            mExecutedCount++;
+            mTotalWaitMillis += waitMillis;
+            mTotalExecMillis += execMillis;
+
+            Log.d(Constants.TAG, "Crypto task of uid " + task.mUid + ": waited " + waitMillis
+                    + "ms, executed " + execMillis + "ms (avg wait "
+                    + (mTotalWaitMillis / mExecutedCount) + "ms, avg exec "
+                    + (mTotalExecMillis / mExecutedCount) + "ms, " + mExecutedCount
+                    + " executed, " + mRejectedCount + " rejected)");
+        }
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            // requests are often small and interactive, do not throttle them like background work
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
+
+            while (true) {
+                Task<?> task;
+                try {
+                    task = takeTask();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task == null) {
+                    return;
+                }
+
+                if (!task.start()) {
+                    // cancelled while queued
+                    continue;
+                }
+
+                long start = SystemClock.elapsedRealtime();
+                task.run();
+                long end = SystemClock.elapsedRealtime();
+
+                taskDone(task, start - task.mEnqueueTime, end - start);
+            }
+        }
+    }
+
+    private static class Task<T> extends FutureTask<T> {
+        final int mUid;
+        final long mEnqueueTime;
+        final ParcelFileDescriptor[] mDescriptors;
+        /** set by the worker starting the task or by cancelling it, whichever comes first */
+        private final AtomicBoolean mClaimed = new AtomicBoolean(false);
+
+        Task(int uid, Callable<T> callable, ParcelFileDescriptor[] descriptors) {
+            super(callable);
+            mUid = uid;
+            mEnqueueTime = SystemClock.elapsedRealtime();
+            mDescriptors = descriptors;
+        }
+
+        /**
+         * @return false if the task has been cancelled and must not be run
+         */
+        boolean start() {
+            return mClaimed.compareAndSet(false, true);
+        }
+
+        /**
+         * Cancels the task and closes its descriptors, unless a worker started it already. A
+         * started task finishes and closes the descriptors itself.
+         *
+         * @return true if the task has been cancelled
+         */
+        boolean cancelIfNotStarted() {
+            if (!mClaimed.compareAndSet(false, true)) {
+                return false;
+            }
+            cancel(false);
+            for (ParcelFileDescriptor descriptor : mDescriptors) {
+                if (descriptor == null) {
+                    continue;
+                }
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "Closing descriptor of cancelled task failed!", e);
+                }
+            }
+            return true;
+        }
+    }
+}
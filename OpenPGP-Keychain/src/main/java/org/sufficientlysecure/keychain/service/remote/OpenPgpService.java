@@ -19,15 +19,17 @@ package org.sufficientlysecure.keychain.service.remote;
 
 import android.app.PendingIntent;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
+import android.os.Binder;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 
 import org.openintents.openpgp.IOpenPgpService;
 import org.openintents.openpgp.OpenPgpError;
 import org.openintents.openpgp.OpenPgpSignatureResult;
+import org.openintents.openpgp.util.FramedInputStream;
+import org.openintents.openpgp.util.FramedOutputStream;
 import org.openintents.openpgp.util.OpenPgpApi;
+import org.spongycastle.openpgp.PGPPrivateKey;
 import org.spongycastle.util.Arrays;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
@@ -35,14 +37,20 @@ import org.sufficientlysecure.keychain.pgp.PgpDecryptVerify;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyResult;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncrypt;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
-import org.sufficientlysecure.keychain.provider.KeychainContract;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.PassphraseCacheService;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
 public class OpenPgpService extends RemoteService {
 
@@ -50,6 +58,17 @@ public class OpenPgpService extends RemoteService {
     private static final int PRIVATE_REQUEST_CODE_USER_IDS = 552;
     private static final int PRIVATE_REQUEST_CODE_GET_KEYS = 553;
 
+    private static final int MAX_WORKER_THREADS = 4;
+    private static final int MAX_QUEUED_PER_UID = 4;
+    // binder threads waiting for a worker, further requests get SERVICE_BUSY right away
+    private static final int MAX_QUEUED = 8;
+    // requests of Keychain itself are user facing and served twice as often
+    private static final int OWN_UID_WEIGHT = 2;
+    // requests of a batch executed by one task, before the worker serves other callers
+    private static final int BATCH_PART_SIZE = 8;
+
+    private CryptoTaskScheduler mScheduler;
+
     /**
      * Search database for key ids based on emails.
      *
@@ -57,30 +76,18 @@ public class OpenPgpService extends RemoteService {
      * @return
      */
     private Intent getKeyIdsFromEmails(Intent data, String[] encryptionUserIds) {
-        // find key ids to given emails in database
-        ArrayList<Long> keyIds = new ArrayList<Long>();
-
-        boolean missingUserIdsCheck = false;
-        boolean dublicateUserIdsCheck = false;
-        ArrayList<String> missingUserIds = new ArrayList<String>();
-        ArrayList<String> dublicateUserIds = new ArrayList<String>();
-
-        for (String email : encryptionUserIds) {
-            Uri uri = KeychainContract.KeyRings.buildPublicKeyRingsByEmailsUri(email);
-            Cursor cur = getContentResolver().query(uri, null, null, null, null);
-            if (cur.moveToFirst()) {
-                long id = cur.getLong(cur.getColumnIndex(KeychainContract.KeyRings.MASTER_KEY_ID));
-                keyIds.add(id);
-            } else {
-                missingUserIdsCheck = true;
-                missingUserIds.add(email);
-                Log.d(Constants.TAG, "user id missing");
-            }
-            if (cur.moveToNext()) {
-                dublicateUserIdsCheck = true;
-                dublicateUserIds.add(email);
-                Log.d(Constants.TAG, "more than one user id with the same email");
-            }
+        // find key ids to given emails in database, all at once
+        ProviderHelper.EmailResolution resolution =
+                ProviderHelper.resolveEmails(getContext(), encryptionUserIds);
+        ArrayList<Long> keyIds = resolution.getMasterKeyIds();
+        ArrayList<String> missingUserIds = resolution.getMissingEmails();
+        ArrayList<String> dublicateUserIds = resolution.getAmbiguousEmails();
+
+        if (!missingUserIds.isEmpty()) {
+            Log.d(Constants.TAG, "user ids missing: " + missingUserIds);
+        }
+        if (!dublicateUserIds.isEmpty()) {
+            Log.d(Constants.TAG, "more than one key with the same email: " + dublicateUserIds);
         }
 
         // convert to long[]
@@ -90,7 +97,7 @@ public class OpenPgpService extends RemoteService {
         }
 
         // allow the user to verify pub key selection
-        if (missingUserIdsCheck || dublicateUserIdsCheck) {
+        if (!resolution.isComplete()) {
             // build PendingIntent
             Intent intent = new Intent(getBaseContext(), RemoteServiceActivity.class);
             intent.setAction(RemoteServiceActivity.ACTION_SELECT_PUB_KEYS);
@@ -136,27 +143,32 @@ public class OpenPgpService extends RemoteService {
         return result;
     }
 
-    private Intent signImpl(Intent data, ParcelFileDescriptor input,
-                            ParcelFileDescriptor output, AppSettings appSettings) {
+    /**
+     * @param batch keys of the batch this request belongs to, null if not in a batch
+     * @return passphrase of the app's key, or null if it is not cached
+     */
+    private String getPassphrase(Intent data, AppSettings appSettings, BatchKeys batch) {
+        if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
+            return data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE);
+        } else if (batch != null && batch.passphrase != null) {
+            return batch.passphrase;
+        }
+        // get passphrase from cache, if key has "no" passphrase, this returns an empty String
+        return PassphraseCacheService.getCachedPassphrase(getContext(), appSettings.getKeyId());
+    }
+
+    private Intent signImpl(Intent data, InputStream is, OutputStream os,
+                            AppSettings appSettings, BatchKeys batch) {
         try {
             boolean asciiArmor = data.getBooleanExtra(OpenPgpApi.EXTRA_REQUEST_ASCII_ARMOR, true);
 
-            // get passphrase from cache, if key has "no" passphrase, this returns an empty String
-            String passphrase;
-            if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
-                passphrase = data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE);
-            } else {
-                passphrase = PassphraseCacheService.getCachedPassphrase(getContext(), appSettings.getKeyId());
-            }
+            String passphrase = getPassphrase(data, appSettings, batch);
             if (passphrase == null) {
                 // get PendingIntent for passphrase input, add it to given params and return to client
                 Intent passphraseBundle = getPassphraseBundleIntent(data, appSettings.getKeyId());
                 return passphraseBundle;
             }
 
-            // Get Input- and OutputStream from ParcelFileDescriptor
-            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(input);
-            OutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(output);
             try {
                 long inputLength = is.available();
                 InputData inputData = new InputData(is, inputLength);
@@ -168,6 +180,9 @@ public class OpenPgpService extends RemoteService {
                         .signatureForceV3(false)
                         .signatureKeyId(appSettings.getKeyId())
                         .signaturePassphrase(passphrase);
+                if (batch != null) {
+                    builder.unlockedKeys(batch.unlockedKeys);
+                }
                 builder.build().execute();
             } finally {
                 is.close();
@@ -186,8 +201,8 @@ public class OpenPgpService extends RemoteService {
         }
     }
 
-    private Intent encryptAndSignImpl(Intent data, ParcelFileDescriptor input,
-                                      ParcelFileDescriptor output, AppSettings appSettings, boolean sign) {
+    private Intent encryptAndSignImpl(Intent data, InputStream is, OutputStream os,
+                                      AppSettings appSettings, boolean sign, BatchKeys batch) {
         try {
             boolean asciiArmor = data.getBooleanExtra(OpenPgpApi.EXTRA_REQUEST_ASCII_ARMOR, true);
 
@@ -219,9 +234,6 @@ public class OpenPgpService extends RemoteService {
             keyIds[keyIds.length - 1] = appSettings.getKeyId();
 
             // build InputData and write into OutputStream
-            // Get Input- and OutputStream from ParcelFileDescriptor
-            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(input);
-            OutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(output);
             try {
                 long inputLength = is.available();
                 InputData inputData = new InputData(is, inputLength);
@@ -233,13 +245,7 @@ public class OpenPgpService extends RemoteService {
                         .encryptionKeyIds(keyIds);
 
                 if (sign) {
-                    String passphrase;
-                    if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
-                        passphrase = data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE);
-                    } else {
-                        passphrase = PassphraseCacheService.getCachedPassphrase(getContext(),
-                                appSettings.getKeyId());
-                    }
+                    String passphrase = getPassphrase(data, appSettings, batch);
                     if (passphrase == null) {
                         // get PendingIntent for passphrase input, add it to given params and return to client
                         Intent passphraseBundle = getPassphraseBundleIntent(data, appSettings.getKeyId());
@@ -251,6 +257,9 @@ public class OpenPgpService extends RemoteService {
                             .signatureForceV3(false)
                             .signatureKeyId(appSettings.getKeyId())
                             .signaturePassphrase(passphrase);
+                    if (batch != null) {
+                        builder.unlockedKeys(batch.unlockedKeys);
+                    }
                 } else {
                     // encrypt only
                     builder.signatureKeyId(Id.key.none);
@@ -274,17 +283,16 @@ public class OpenPgpService extends RemoteService {
         }
     }
 
-    private Intent decryptAndVerifyImpl(Intent data, ParcelFileDescriptor input,
-                                        ParcelFileDescriptor output, AppSettings appSettings) {
+    private Intent decryptAndVerifyImpl(Intent data, InputStream is, OutputStream os,
+                                        AppSettings appSettings, BatchKeys batch) {
         try {
-            // Get Input- and OutputStream from ParcelFileDescriptor
-            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(input);
-            OutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(output);
-
             Intent result = new Intent();
             try {
 
                 String passphrase = data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE);
+                if (passphrase == null && batch != null) {
+                    passphrase = batch.passphrase;
+                }
                 long inputLength = is.available();
                 InputData inputData = new InputData(is, inputLength);
 
@@ -292,6 +300,9 @@ public class OpenPgpService extends RemoteService {
                 builder.assumeSymmetric(false) // no support for symmetric encryption
                         .enforcedKeyId(appSettings.getKeyId()) // allow only the private key for this app for decryption
                         .passphrase(passphrase);
+                if (batch != null) {
+                    builder.unlockedKeys(batch.unlockedKeys);
+                }
 
                 // TODO: currently does not support binary signed-only content
                 PgpDecryptVerifyResult decryptVerifyResult = builder.build().execute();
@@ -384,39 +395,222 @@ public class OpenPgpService extends RemoteService {
         return null;
     }
 
-    // TODO: multi-threading
+    /**
+     * Executes a batch, the requests are run in parts of BATCH_PART_SIZE requests, each part as
+     * its own task of the scheduler. This way a large batch does not occupy a worker until it is
+     * done, the requests of other callers are executed between its parts.
+     */
+    private Intent batchImpl(int uid, final Intent data, ParcelFileDescriptor input,
+                             ParcelFileDescriptor output, final AppSettings appSettings)
+            throws InterruptedException, ExecutionException {
+        final ArrayList<Intent> requests =
+                data.getParcelableArrayListExtra(OpenPgpApi.EXTRA_BATCH_REQUESTS);
+        if (requests == null || input == null || output == null) {
+            return getErrorResult(OpenPgpError.GENERIC_ERROR,
+                    "Missing parameter batch_requests or input/output!");
+        }
+
+        // every request is checked on its own, checks depend on the calling uid, so they are
+        // done here on the binder thread
+        final Intent[] errorResults = new Intent[requests.size()];
+        for (int i = 0; i < requests.size(); i++) {
+            Intent request = requests.get(i);
+            if (request != null && OpenPgpApi.ACTION_BATCH.equals(request.getAction())) {
+                errorResults[i] = getErrorResult(OpenPgpError.GENERIC_ERROR,
+                        "Nested batches are not supported!");
+            } else {
+                errorResults[i] = checkRequirements(request);
+            }
+        }
+
+        final InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(input);
+        final OutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+        try {
+            // the passphrase of the app's key is looked up once and private keys are only
+            // unlocked by the first request using them
+            final BatchKeys batch = new BatchKeys();
+            final ArrayList<Intent> results = new ArrayList<Intent>(requests.size());
+
+            Intent passphraseResult = mScheduler.execute(uid, new Callable<Intent>() {
+                @Override
+                public Intent call() throws Exception {
+                    boolean sign = containsAction(requests, OpenPgpApi.ACTION_SIGN)
+                            || containsAction(requests, OpenPgpApi.ACTION_SIGN_AND_ENCRYPT);
+                    if (sign || containsAction(requests, OpenPgpApi.ACTION_DECRYPT_VERIFY)) {
+                        batch.passphrase = getPassphrase(data, appSettings, null);
+                        if (batch.passphrase == null && sign) {
+                            // ask once for the whole batch, the client repeats it afterwards
+                            return getPassphraseBundleIntent(data, appSettings.getKeyId());
+                        }
+                    }
+                    return null;
+                }
+            }, input, output);
+            if (passphraseResult != null) {
+                return passphraseResult;
+            }
+
+            for (int partStart = 0; partStart < requests.size(); partStart += BATCH_PART_SIZE) {
+                final int start = partStart;
+                final int end = Math.min(requests.size(), partStart + BATCH_PART_SIZE);
+                mScheduler.executeFollowUp(uid, new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        for (int i = start; i < end; i++) {
+                            InputStream itemIs = new FramedInputStream(is);
+                            OutputStream itemOs = new FramedOutputStream(os);
+                            try {
+                                if (errorResults[i] != null) {
+                                    results.add(errorResults[i]);
+                                } else {
+                                    results.add(executeImpl(requests.get(i), itemIs, itemOs,
+                                            appSettings, batch));
+                                }
+                            } finally {
+                                // skip unread input and end the output of this request
+                                itemIs.close();
+                                itemOs.close();
+                            }
+                        }
+                        return null;
+                    }
+                }, input, output);
+            }
+
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+            result.putParcelableArrayListExtra(OpenPgpApi.RESULT_BATCH_RESULTS, results);
+            return result;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                Log.e(Constants.TAG, "Batch transfer failed!", e.getCause());
+                return getErrorResult(OpenPgpError.GENERIC_ERROR, e.getCause().getMessage());
+            }
+            throw e;
+        } finally {
+            try {
+                is.close();
+                os.close();
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "IOException", e);
+            }
+        }
+    }
+
+    private static boolean containsAction(ArrayList<Intent> requests, String action) {
+        for (Intent request : requests) {
+            if (request != null && action.equals(request.getAction())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Intent executeImpl(Intent data, ParcelFileDescriptor input, ParcelFileDescriptor output,
+                               AppSettings appSettings) {
+        // Get Input- and OutputStream from ParcelFileDescriptor
+        InputStream is = (input != null) ? new ParcelFileDescriptor.AutoCloseInputStream(input) : null;
+        OutputStream os = (output != null) ? new ParcelFileDescriptor.AutoCloseOutputStream(output) : null;
+
+        return executeImpl(data, is, os, appSettings, null);
+    }
+
+    private Intent executeImpl(Intent data, InputStream is, OutputStream os,
+                               AppSettings appSettings, BatchKeys batch) {
+        String action = data.getAction();
+        if (OpenPgpApi.ACTION_SIGN.equals(action)) {
+            return signImpl(data, is, os, appSettings, batch);
+        } else if (OpenPgpApi.ACTION_ENCRYPT.equals(action)) {
+            return encryptAndSignImpl(data, is, os, appSettings, false, batch);
+        } else if (OpenPgpApi.ACTION_SIGN_AND_ENCRYPT.equals(action)) {
+            return encryptAndSignImpl(data, is, os, appSettings, true, batch);
+        } else if (OpenPgpApi.ACTION_DECRYPT_VERIFY.equals(action)) {
+            return decryptAndVerifyImpl(data, is, os, appSettings, batch);
+        } else if (OpenPgpApi.ACTION_DOWNLOAD_KEYS.equals(action)) {
+            // TODO!
+            return null;
+        } else if (OpenPgpApi.ACTION_GET_KEY_IDS.equals(action)) {
+            return getKeyIdsImpl(data);
+        } else {
+            return null;
+        }
+    }
+
+    private Intent getErrorResult(int errorId, String message) {
+        Intent result = new Intent();
+        result.putExtra(OpenPgpApi.RESULT_ERROR, new OpenPgpError(errorId, message));
+        result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+        return result;
+    }
+
+    /**
+     * Shared by the requests of a batch, which are executed one after another
+     */
+    private static class BatchKeys {
+        /** passphrase of the app's key, null if not cached */
+        String passphrase;
+        final HashMap<Long, PGPPrivateKey> unlockedKeys = new HashMap<Long, PGPPrivateKey>();
+    }
+
     private final IOpenPgpService.Stub mBinder = new IOpenPgpService.Stub() {
 
         @Override
-        public Intent execute(Intent data, ParcelFileDescriptor input, ParcelFileDescriptor output) {
+        public Intent execute(final Intent data, final ParcelFileDescriptor input,
+                              final ParcelFileDescriptor output) {
+            // checks depend on the calling uid, do them on the binder thread
             Intent errorResult = checkRequirements(data);
             if (errorResult != null) {
                 return errorResult;
             }
 
             final AppSettings appSettings = getAppSettings();
+            int uid = Binder.getCallingUid();
 
-            String action = data.getAction();
-            if (OpenPgpApi.ACTION_SIGN.equals(action)) {
-                return signImpl(data, input, output, appSettings);
-            } else if (OpenPgpApi.ACTION_ENCRYPT.equals(action)) {
-                return encryptAndSignImpl(data, input, output, appSettings, false);
-            } else if (OpenPgpApi.ACTION_SIGN_AND_ENCRYPT.equals(action)) {
-                return encryptAndSignImpl(data, input, output, appSettings, true);
-            } else if (OpenPgpApi.ACTION_DECRYPT_VERIFY.equals(action)) {
-                return decryptAndVerifyImpl(data, input, output, appSettings);
-            } else if (OpenPgpApi.ACTION_DOWNLOAD_KEYS.equals(action)) {
-                // TODO!
-                return null;
-            } else if (OpenPgpApi.ACTION_GET_KEY_IDS.equals(action)) {
-                return getKeyIdsImpl(data);
-            } else {
-                return null;
+            // the actual operation is done by the worker pool, fairly shared between callers
+            try {
+                if (OpenPgpApi.ACTION_BATCH.equals(data.getAction())) {
+                    return batchImpl(uid, data, input, output, appSettings);
+                }
+                return mScheduler.execute(uid, new Callable<Intent>() {
+                    @Override
+                    public Intent call() throws Exception {
+                        return executeImpl(data, input, output, appSettings);
+                    }
+                }, input, output);
+            } catch (RejectedExecutionException e) {
+                Log.e(Constants.TAG, "Too many pending operations, rejecting request!", e);
+                return getErrorResult(OpenPgpError.SERVICE_BUSY,
+                        "Too many pending operations, try again later!");
+            } catch (InterruptedException e) {
+                Log.e(Constants.TAG, "Interrupted while waiting for operation!", e);
+                return getErrorResult(OpenPgpError.GENERIC_ERROR, "Operation interrupted!");
+            } catch (CancellationException e) {
+                Log.e(Constants.TAG, "Operation cancelled, service is shutting down!", e);
+                return getErrorResult(OpenPgpError.SERVICE_BUSY,
+                        "Service is shutting down, try again later!");
+            } catch (ExecutionException e) {
+                Log.e(Constants.TAG, "Operation failed!", e.getCause());
+                return getErrorResult(OpenPgpError.GENERIC_ERROR, e.getCause().getMessage());
             }
         }
 
     };
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        int threadCount = Math.min(MAX_WORKER_THREADS, Runtime.getRuntime().availableProcessors());
+        mScheduler = new CryptoTaskScheduler(Math.max(1, threadCount), MAX_QUEUED_PER_UID,
+                MAX_QUEUED);
+        mScheduler.setWeight(android.os.Process.myUid(), OWN_UID_WEIGHT);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mScheduler.shutdown();
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -25,19 +25,24 @@ import org.openintents.openpgp.util.OpenPgpApi;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.util.Log;
 
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.Signature;
+import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Binder;
+import android.util.SparseArray;
 
 /**
  * Abstract service class for remote APIs that handle app registration and user input.
@@ -48,6 +53,25 @@ public abstract class RemoteService extends Service {
     private static final int PRIVATE_REQUEST_CODE_REGISTER = 651;
     private static final int PRIVATE_REQUEST_CODE_ERROR = 652;
 
+    /**
+     * Verified callers by uid, saves the database and PackageManager queries on every call.
+     * Cleared when registered apps change or packages are replaced or removed.
+     */
+    private final SparseArray<CallerInfo> mCallerCache = new SparseArray<CallerInfo>();
+    private long mCallerCacheGeneration = 0;
+
+    private ContentObserver mApiAppsObserver;
+    private BroadcastReceiver mPackageReceiver;
+
+    private static class CallerInfo {
+        final String packageName;
+        AppSettings appSettings;
+
+        CallerInfo(String packageName) {
+            this.packageName = packageName;
+        }
+    }
+
 
     public Context getContext() {
         return mContext;
@@ -128,7 +152,17 @@ public abstract class RemoteService extends Service {
      * @return
      */
     protected AppSettings getAppSettings() {
-        String[] callingPackages = getPackageManager().getPackagesForUid(Binder.getCallingUid());
+        int uid = Binder.getCallingUid();
+        long generation;
+        synchronized (mCallerCache) {
+            CallerInfo callerInfo = mCallerCache.get(uid);
+            if (callerInfo != null && callerInfo.appSettings != null) {
+                return callerInfo.appSettings;
+            }
+            generation = mCallerCacheGeneration;
+        }
+
+        String[] callingPackages = getPackageManager().getPackagesForUid(uid);
 
         // get app settings for this package
         for (int i = 0; i < callingPackages.length; i++) {
@@ -138,8 +172,16 @@ public abstract class RemoteService extends Service {
 
             AppSettings settings = ProviderHelper.getApiAppSettings(this, uri);
 
-            if (settings != null)
+            if (settings != null) {
+                synchronized (mCallerCache) {
+                    CallerInfo callerInfo = mCallerCache.get(uid);
+                    if (callerInfo != null && generation == mCallerCacheGeneration
+                            && currentPkg.equals(callerInfo.packageName)) {
+                        callerInfo.appSettings = settings;
+                    }
+                }
                 return settings;
+            }
         }
 
         return null;
@@ -166,6 +208,14 @@ public abstract class RemoteService extends Service {
             return false;
         }
 
+        long generation;
+        synchronized (mCallerCache) {
+            if (mCallerCache.get(uid) != null) {
+                return true;
+            }
+            generation = mCallerCacheGeneration;
+        }
+
         String[] callingPackages = getPackageManager().getPackagesForUid(uid);
 
         // is calling package allowed to use this service?
@@ -173,6 +223,12 @@ public abstract class RemoteService extends Service {
             String currentPkg = callingPackages[i];
 
             if (isPackageAllowed(currentPkg)) {
+                synchronized (mCallerCache) {
+                    // do not cache if registered apps changed while checking
+                    if (generation == mCallerCacheGeneration) {
+                        mCallerCache.put(uid, new CallerInfo(currentPkg));
+                    }
+                }
                 return true;
             }
         }
@@ -220,10 +276,46 @@ public abstract class RemoteService extends Service {
         return false;
     }
 
+    private void invalidateCallerCache() {
+        synchronized (mCallerCache) {
+            mCallerCacheGeneration++;
+            mCallerCache.clear();
+        }
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
         mContext = this;
+
+        // registered apps are changed in the main process
+        mApiAppsObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidateCallerCache();
+            }
+        };
+        getContentResolver().registerContentObserver(ApiApps.CONTENT_URI, true, mApiAppsObserver);
+
+        // a replaced package may have a different signature
+        mPackageReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidateCallerCache();
+            }
+        };
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        registerReceiver(mPackageReceiver, filter);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        getContentResolver().unregisterContentObserver(mApiAppsObserver);
+        unregisterReceiver(mPackageReceiver);
     }
 
 }
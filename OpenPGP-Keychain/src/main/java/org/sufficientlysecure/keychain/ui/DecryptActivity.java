@@ -36,7 +36,7 @@ import org.sufficientlysecure.keychain.helper.FileHelper;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyResult;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
 import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
-import org.sufficientlysecure.keychain.pgp.PgpDecryptVerify;
+import org.sufficientlysecure.keychain.pgp.PgpMessageHeader;
 import org.sufficientlysecure.keychain.pgp.exception.NoAsymmetricEncryptionException;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
@@ -535,24 +535,30 @@ public class DecryptActivity extends DrawerActivity {
             inStream = new ByteArrayInputStream(mMessage.getText().toString().getBytes());
         }
 
+        if (inStream == null) {
+            // opening the input failed, the error has been shown already
+            return;
+        }
+
         // get decryption key for this inStream
         try {
+            // only the packets in front of the encrypted data are read, once
+            PgpMessageHeader header;
             try {
-                if (inStream.markSupported()) {
-                    inStream.mark(200); // should probably set this to the max size of two pgpF
-                    // objects, if it even needs to be anything other than 0.
-                }
-                mSecretKeyId = PgpHelper.getDecryptionKeyId(this, inStream);
+                header = PgpMessageHeader.read(inStream);
+            } finally {
+                inStream.close();
+            }
+
+            try {
+                mSecretKeyId = PgpHelper.getDecryptionKeyId(this, header);
                 if (mSecretKeyId == Id.key.none) {
                     throw new PgpGeneralException(getString(R.string.error_no_secret_key_found));
                 }
                 mAssumeSymmetricEncryption = false;
             } catch (NoAsymmetricEncryptionException e) {
-                if (inStream.markSupported()) {
-                    inStream.reset();
-                }
                 mSecretKeyId = Id.key.symmetric;
-                if (!PgpDecryptVerify.hasSymmetricEncryption(this, inStream)) {
+                if (!header.isSymmetric()) {
                     throw new PgpGeneralException(
                             getString(R.string.error_no_known_encryption_found));
                 }
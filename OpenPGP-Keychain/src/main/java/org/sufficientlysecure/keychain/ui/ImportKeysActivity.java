@@ -416,9 +416,23 @@ public class ImportKeysActivity extends DrawerActivity implements ActionBar.OnNa
             // fill values for this action
             Bundle data = new Bundle();
 
-            // get selected key entries
+            // the service reads the keys again while importing them, instead of getting the
+            // parsed entries, so large files do not have to be held in memory
+            if (mListFragment.getKeyBytes() != null) {
+                data.putByteArray(KeychainIntentService.IMPORT_BYTES, mListFragment.getKeyBytes());
+            } else {
+                intent.setData(mListFragment.getDataUri());
+            }
+
+            // only restrict the import if not all keys are selected
             ArrayList<ImportKeysListEntry> selectedEntries = mListFragment.getSelectedData();
-            data.putParcelableArrayList(KeychainIntentService.IMPORT_KEY_LIST, selectedEntries);
+            if (selectedEntries.size() < mListFragment.getData().size()) {
+                long[] masterKeyIds = new long[selectedEntries.size()];
+                for (int i = 0; i < masterKeyIds.length; i++) {
+                    masterKeyIds[i] = selectedEntries.get(i).getKeyId();
+                }
+                data.putLongArray(KeychainIntentService.IMPORT_KEY_IDS, masterKeyIds);
+            }
 
             intent.putExtra(KeychainIntentService.EXTRA_DATA, data);
 
@@ -224,6 +224,10 @@ public class ImportKeysListFragment extends ListFragment implements
                 break;
 
             case LOADER_ID_SERVER_QUERY:
+                if (((ImportKeysListServerLoader) loader).isQuerying()) {
+                    // incomplete results, report when all have been received
+                    break;
+                }
 
                 Exception error = data.getError();
 
@@ -237,16 +237,16 @@ public class KeyListPublicFragment extends Fragment implements SearchView.OnQuer
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         // This is called when a new Loader needs to be created. This
         // sample only has one Loader, so we don't care about the ID.
-        Uri baseUri = KeyRings.buildPublicKeyRingsUri();
-        String where = null;
-        String whereArgs[] = null;
-        if(mCurQuery != null){
-            where = KeychainContract.UserIds.USER_ID + " LIKE ?";
-            whereArgs = new String[]{mCurQuery+"%"};
+        Uri baseUri;
+        if (mCurQuery != null) {
+            // searches all user ids using the full text index
+            baseUri = KeyRings.buildPublicKeyRingsBySearchUri(mCurQuery);
+        } else {
+            baseUri = KeyRings.buildPublicKeyRingsUri();
         }
         // Now create and return a CursorLoader that will take care of
         // creating a Cursor for the data being displayed.
-        return new CursorLoader(getActivity(), baseUri, PROJECTION, where, whereArgs, SORT_ORDER);
+        return new CursorLoader(getActivity(), baseUri, PROJECTION, null, null, SORT_ORDER);
     }
 
     @Override
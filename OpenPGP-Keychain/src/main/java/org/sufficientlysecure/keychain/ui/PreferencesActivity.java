@@ -66,6 +66,9 @@ public class PreferencesActivity extends PreferenceActivity {
             initializePassPassPhraceCacheTtl(
                     (IntegerListPreference) findPreference(Constants.pref.PASS_PHRASE_CACHE_TTL));
 
+            initializePassPhraseCachePrivateKeys(
+                    (CheckBoxPreference) findPreference(Constants.pref.PASS_PHRASE_CACHE_PRIVATE_KEYS));
+
             mKeyServerPreference = (PreferenceScreen) findPreference(Constants.pref.KEY_SERVERS);
             String servers[] = mPreferences.getKeyServers();
             mKeyServerPreference.setSummary(getResources().getQuantityString(R.plurals.n_key_servers,
@@ -166,6 +169,9 @@ public class PreferencesActivity extends PreferenceActivity {
             initializePassPassPhraceCacheTtl(
                     (IntegerListPreference) findPreference(Constants.pref.PASS_PHRASE_CACHE_TTL));
 
+            initializePassPhraseCachePrivateKeys(
+                    (CheckBoxPreference) findPreference(Constants.pref.PASS_PHRASE_CACHE_PRIVATE_KEYS));
+
             mKeyServerPreference = (PreferenceScreen) findPreference(Constants.pref.KEY_SERVERS);
             String servers[] = mPreferences.getKeyServers();
             mKeyServerPreference.setSummary(getResources().getQuantityString(R.plurals.n_key_servers,
@@ -269,6 +275,18 @@ public class PreferencesActivity extends PreferenceActivity {
                 });
     }
 
+    private static void initializePassPhraseCachePrivateKeys(final CheckBoxPreference mCachePrivateKeys) {
+        mCachePrivateKeys.setChecked(mPreferences.getPassPhraseCachePrivateKeys());
+        mCachePrivateKeys
+                .setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                    public boolean onPreferenceChange(Preference preference, Object newValue) {
+                        mCachePrivateKeys.setChecked((Boolean) newValue);
+                        mPreferences.setPassPhraseCachePrivateKeys((Boolean) newValue);
+                        return false;
+                    }
+                });
+    }
+
     private static void initializeEncryptionAlgorithm(final IntegerListPreference mEncryptionAlgorithm) {
         int valueIds[] = { PGPEncryptedData.AES_128, PGPEncryptedData.AES_192,
                 PGPEncryptedData.AES_256, PGPEncryptedData.BLOWFISH, PGPEncryptedData.TWOFISH,
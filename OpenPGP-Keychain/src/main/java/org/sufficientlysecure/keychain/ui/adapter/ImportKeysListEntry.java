@@ -169,20 +169,26 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
                 .getFingerprint(), true);
         this.hexKeyId = "0x" + PgpKeyHelper.convertKeyIdToHex(keyId);
         this.bitStrength = pgpKeyRing.getPublicKey().getBitStrength();
-        int algorithm = pgpKeyRing.getPublicKey().getAlgorithm();
-        if (algorithm == PGPPublicKey.RSA_ENCRYPT || algorithm == PGPPublicKey.RSA_GENERAL
-                || algorithm == PGPPublicKey.RSA_SIGN) {
-            this.algorithm = "RSA";
-        } else if (algorithm == PGPPublicKey.DSA) {
-            this.algorithm = "DSA";
-        } else if (algorithm == PGPPublicKey.ELGAMAL_ENCRYPT
-                || algorithm == PGPPublicKey.ELGAMAL_GENERAL) {
-            this.algorithm = "ElGamal";
-        } else if (algorithm == PGPPublicKey.EC || algorithm == PGPPublicKey.ECDSA) {
-            this.algorithm = "ECC";
+        this.algorithm = getAlgorithmFromId(pgpKeyRing.getPublicKey().getAlgorithm());
+    }
+
+    /**
+     * Returns the name of an OpenPGP public key algorithm id
+     */
+    public static String getAlgorithmFromId(int algorithmId) {
+        if (algorithmId == PGPPublicKey.RSA_ENCRYPT || algorithmId == PGPPublicKey.RSA_GENERAL
+                || algorithmId == PGPPublicKey.RSA_SIGN) {
+            return "RSA";
+        } else if (algorithmId == PGPPublicKey.DSA) {
+            return "DSA";
+        } else if (algorithmId == PGPPublicKey.ELGAMAL_ENCRYPT
+                || algorithmId == PGPPublicKey.ELGAMAL_GENERAL) {
+            return "ElGamal";
+        } else if (algorithmId == PGPPublicKey.EC || algorithmId == PGPPublicKey.ECDSA) {
+            return "ECC";
         } else {
             // TODO: with resources
-            this.algorithm = "unknown";
+            return "unknown";
         }
     }
 }
\ No newline at end of file
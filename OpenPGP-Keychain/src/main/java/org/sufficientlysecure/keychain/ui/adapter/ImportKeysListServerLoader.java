@@ -18,6 +18,9 @@
 package org.sufficientlysecure.keychain.ui.adapter;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.content.AsyncTaskLoader;
 
 import org.sufficientlysecure.keychain.Constants;
@@ -30,9 +33,14 @@ import java.util.ArrayList;
 public class ImportKeysListServerLoader extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
     Context mContext;
 
+    /** Minimum time between deliveries of incomplete results in ms */
+    private static final long PARTIAL_DELIVERY_INTERVAL = 300;
+
     String mServerQuery;
     String mKeyServer;
 
+    private volatile boolean mQuerying = false;
+
     private ArrayList<ImportKeysListEntry> entryList = new ArrayList<ImportKeysListEntry>();
     private AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> entryListWrapper;
 
@@ -82,15 +90,47 @@ public class ImportKeysListServerLoader extends AsyncTaskLoader<AsyncTaskResultW
     }
 
     /**
-     * Query keyserver
+     * @return true while results of the query are still being received, data delivered in this
+     *         state is incomplete
+     */
+    public boolean isQuerying() {
+        return mQuerying;
+    }
+
+    /**
+     * Query keyserver, results are delivered in parts while they are received
      */
     private void queryServer(String query, String keyServer) {
         HkpKeyServer server = new HkpKeyServer(keyServer);
+        final Handler handler = new Handler(Looper.getMainLooper());
+        mQuerying = true;
         try {
-            ArrayList<ImportKeysListEntry> searchResult = server.search(query);
+            server.search(query, new HkpKeyServer.SearchListener() {
+                long mLastDelivery = SystemClock.uptimeMillis();
+
+                @Override
+                public void onResult(ImportKeysListEntry entry) {
+                    entryList.add(entry);
+
+                    long now = SystemClock.uptimeMillis();
+                    if (now - mLastDelivery >= PARTIAL_DELIVERY_INTERVAL) {
+                        mLastDelivery = now;
+                        // copy, entryList is still changed by this thread
+                        final AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> partial =
+                                new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>(
+                                        new ArrayList<ImportKeysListEntry>(entryList), null);
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (isStarted() && mQuerying) {
+                                    deliverResult(partial);
+                                }
+                            }
+                        });
+                    }
+                }
+            });
 
-            // add result to data
-            entryList.addAll(searchResult);
             entryListWrapper = new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>(entryList, null);
         } catch (KeyServer.InsufficientQuery e) {
             Log.e(Constants.TAG, "InsufficientQuery", e);
@@ -101,6 +141,14 @@ public class ImportKeysListServerLoader extends AsyncTaskLoader<AsyncTaskResultW
         } catch (KeyServer.TooManyResponses e) {
             Log.e(Constants.TAG, "TooManyResponses", e);
             entryListWrapper = new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>(entryList, e);
+        } finally {
+            // posted after all partial deliveries, before the final one
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mQuerying = false;
+                }
+            });
         }
     }
 
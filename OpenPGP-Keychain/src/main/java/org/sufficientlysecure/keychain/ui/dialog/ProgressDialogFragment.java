@@ -78,8 +78,7 @@ public class ProgressDialogFragment extends DialogFragment {
     public void setProgress(int progress, int max) {
         ProgressDialog dialog = (ProgressDialog) getDialog();
 
-        dialog.setProgress(progress);
-        dialog.setMax(max);
+        updateProgress(dialog, progress, max);
     }
 
     /**
@@ -93,6 +92,18 @@ public class ProgressDialogFragment extends DialogFragment {
         ProgressDialog dialog = (ProgressDialog) getDialog();
 
         dialog.setMessage(message);
+        updateProgress(dialog, progress, max);
+    }
+
+    /**
+     * A max of 0 shows indeterminate progress, used if the size of the input is unknown
+     */
+    private static void updateProgress(ProgressDialog dialog, int progress, int max) {
+        if (max <= 0) {
+            dialog.setIndeterminate(true);
+            return;
+        }
+        dialog.setIndeterminate(false);
         dialog.setProgress(progress);
         dialog.setMax(max);
     }
@@ -18,20 +18,30 @@
 
 package org.sufficientlysecure.keychain.util;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.Locale;
@@ -44,9 +54,21 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 import org.apache.http.util.EntityUtils;
+import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
 import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
 import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListEntry;
@@ -54,8 +76,8 @@ import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListEntry;
 import android.text.Html;
 
 /**
- * TODO:
- * rewrite to use machine readable output.
+ * Searches use the machine readable output, falling back to the HTML output for keyservers not
+ * supporting it.
  * <p/>
  * see http://tools.ietf.org/html/draft-shaw-openpgp-hkp-00#section-5
  * https://github.com/openpgp-keychain/openpgp-keychain/issues/259
@@ -81,9 +103,16 @@ public class HkpKeyServer extends KeyServer {
         }
     }
 
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 25000;
+    private static final int MAX_RETRIES = 2;
+    private static final int MAX_PARALLEL_DOWNLOADS = 4;
+
     private String mHost;
     private short mPort = 11371;
 
+    private HttpClient mHttpClient;
+
     // example:
     // pub 2048R/<a href="/pks/lookup?op=get&search=0x887DF4BE9F5C9090">9F5C9090</a> 2009-08-17 <a
     // href="/pks/lookup?op=vindex&search=0x887DF4BE9F5C9090">Jörg Runge
@@ -119,7 +148,12 @@ public class HkpKeyServer extends KeyServer {
         return raw.toString(encoding);
     }
 
-    private String query(String request) throws QueryException, HttpError {
+    /**
+     * Sends the request to the first reachable address of the keyserver
+     *
+     * @return connection with a successful response, ready to be read
+     */
+    private HttpURLConnection openQuery(String request) throws QueryException, HttpError {
         InetAddress ips[];
         try {
             ips = InetAddress.getAllByName(mHost);
@@ -131,14 +165,15 @@ public class HkpKeyServer extends KeyServer {
                 String url = "http://" + ips[i].getHostAddress() + ":" + mPort + request;
                 URL realUrl = new URL(url);
                 HttpURLConnection conn = (HttpURLConnection) realUrl.openConnection();
-                conn.setConnectTimeout(5000);
-                conn.setReadTimeout(25000);
+                conn.setConnectTimeout(CONNECT_TIMEOUT);
+                conn.setReadTimeout(READ_TIMEOUT);
                 conn.connect();
                 int response = conn.getResponseCode();
                 if (response >= 200 && response < 300) {
-                    return readAll(conn.getInputStream(), conn.getContentEncoding());
+                    return conn;
                 } else {
                     String data = readAll(conn.getErrorStream(), conn.getContentEncoding());
+                    conn.disconnect();
                     throw new HttpError(response, data);
                 }
             } catch (MalformedURLException e) {
@@ -151,9 +186,27 @@ public class HkpKeyServer extends KeyServer {
         throw new QueryException("querying server(s) for '" + mHost + "' failed");
     }
 
+    /**
+     * Receives search results as soon as they have been parsed
+     */
+    public interface SearchListener {
+        void onResult(ImportKeysListEntry entry);
+    }
+
     @Override
     public ArrayList<ImportKeysListEntry> search(String query) throws QueryException, TooManyResponses,
             InsufficientQuery {
+        return search(query, null);
+    }
+
+    /**
+     * Searches using the machine readable index format, which is parsed while it is received. If
+     * the keyserver does not support it, the HTML index is parsed instead.
+     *
+     * @param listener notified about every result as soon as it is available, may be null
+     */
+    public ArrayList<ImportKeysListEntry> search(String query, SearchListener listener)
+            throws QueryException, TooManyResponses, InsufficientQuery {
         ArrayList<ImportKeysListEntry> results = new ArrayList<ImportKeysListEntry>();
 
         if (query.length() < 3) {
@@ -166,11 +219,11 @@ public class HkpKeyServer extends KeyServer {
         } catch (UnsupportedEncodingException e) {
             return null;
         }
-        String request = "/pks/lookup?op=index&search=" + encodedQuery;
+        String request = "/pks/lookup?op=index&options=mr&search=" + encodedQuery;
 
-        String data = null;
+        HttpURLConnection conn;
         try {
-            data = query(request);
+            conn = openQuery(request);
         } catch (HttpError e) {
             if (e.getCode() == 404) {
                 return results;
@@ -186,6 +239,123 @@ public class HkpKeyServer extends KeyServer {
             throw new QueryException("querying server(s) for '" + mHost + "' failed");
         }
 
+        try {
+            String encoding = conn.getContentEncoding();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    conn.getInputStream(), encoding != null ? encoding : "utf8"));
+
+            String line = reader.readLine();
+            while (line != null && line.trim().length() == 0) {
+                line = reader.readLine();
+            }
+            if (line == null) {
+                return results;
+            }
+
+            if (line.startsWith("info:") || line.startsWith("pub:")) {
+                parseMachineReadableIndex(line, reader, results, listener);
+            } else {
+                // not supported by this keyserver, it sent the HTML index
+                StringBuilder data = new StringBuilder(line).append('\n');
+                while ((line = reader.readLine()) != null) {
+                    data.append(line).append('\n');
+                }
+                parseHtmlIndex(data.toString(), results, listener);
+            }
+        } catch (IOException e) {
+            throw new QueryException("querying server(s) for '" + mHost + "' failed");
+        } finally {
+            conn.disconnect();
+        }
+
+        return results;
+    }
+
+    /**
+     * Parses the machine readable index, see
+     * http://tools.ietf.org/html/draft-shaw-openpgp-hkp-00#section-5.2
+     *
+     * <pre>
+     * info:&lt;version&gt;:&lt;count&gt;
+     * pub:&lt;keyid&gt;:&lt;algo&gt;:&lt;keylen&gt;:&lt;creationdate&gt;:&lt;expirationdate&gt;:&lt;flags&gt;
+     * uid:&lt;escaped uid string&gt;:&lt;creationdate&gt;:&lt;expirationdate&gt;:&lt;flags&gt;
+     * </pre>
+     *
+     * @param line first line, already read from reader
+     */
+    private static void parseMachineReadableIndex(String line, BufferedReader reader,
+                                                  ArrayList<ImportKeysListEntry> results,
+                                                  SearchListener listener) throws IOException {
+        ImportKeysListEntry info = null;
+        for (; line != null; line = reader.readLine()) {
+            String fields[] = line.split(":", -1);
+
+            if ("pub".equals(fields[0]) && fields.length >= 2) {
+                addResult(info, results, listener);
+
+                String hexKeyId = fields[1].toLowerCase(Locale.US);
+                if (hexKeyId.length() > 16) {
+                    // fingerprint, the key id are its last 16 digits
+                    hexKeyId = hexKeyId.substring(hexKeyId.length() - 16);
+                }
+                try {
+                    info = new ImportKeysListEntry();
+                    info.hexKeyId = "0x" + hexKeyId;
+                    info.keyId = new BigInteger(hexKeyId, 16).longValue();
+                    info.algorithm = fields.length > 2 && fields[2].length() > 0
+                            ? ImportKeysListEntry.getAlgorithmFromId(Integer.parseInt(fields[2]))
+                            : ImportKeysListEntry.getAlgorithmFromId(-1);
+                    info.bitStrength = fields.length > 3 && fields[3].length() > 0
+                            ? Integer.parseInt(fields[3]) : 0;
+                    if (fields.length > 4 && fields[4].length() > 0) {
+                        info.date = new Date(Long.parseLong(fields[4]) * 1000);
+                    }
+                    info.revoked = fields.length > 6 && fields[6].contains("r");
+                    info.userIds = new ArrayList<String>();
+                } catch (NumberFormatException e) {
+                    Log.e(Constants.TAG, "Invalid key in machine readable index: " + line);
+                    info = null;
+                }
+            } else if ("uid".equals(fields[0]) && fields.length >= 2 && info != null) {
+                info.userIds.add(decodeMachineReadable(fields[1]));
+            }
+        }
+        addResult(info, results, listener);
+    }
+
+    /**
+     * Decodes the %XX escaping of user ids in the machine readable index
+     */
+    private static String decodeMachineReadable(String escaped) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(escaped.length());
+        for (int i = 0; i < escaped.length(); i++) {
+            char c = escaped.charAt(i);
+            if (c == '%' && i + 2 < escaped.length()) {
+                int high = Character.digit(escaped.charAt(i + 1), 16);
+                int low = Character.digit(escaped.charAt(i + 2), 16);
+                if (high != -1 && low != -1) {
+                    out.write((high << 4) | low);
+                    i += 2;
+                    continue;
+                }
+                // no escape sequence, keep the %
+            }
+            if (c < 0x80) {
+                out.write(c);
+            } else {
+                byte bytes[] = String.valueOf(c).getBytes(Charset.forName("UTF-8"));
+                out.write(bytes, 0, bytes.length);
+            }
+        }
+        try {
+            return out.toString("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return escaped;
+        }
+    }
+
+    private static void parseHtmlIndex(String data, ArrayList<ImportKeysListEntry> results,
+                                       SearchListener listener) {
         Matcher matcher = PUB_KEY_LINE.matcher(data);
         while (matcher.find()) {
             ImportKeysListEntry info = new ImportKeysListEntry();
@@ -215,25 +385,33 @@ public class HkpKeyServer extends KeyServer {
                     info.userIds.add(tmp);
                 }
             }
-            results.add(info);
+            addResult(info, results, listener);
         }
+    }
 
-        return results;
+    private static void addResult(ImportKeysListEntry info, ArrayList<ImportKeysListEntry> results,
+                                  SearchListener listener) {
+        if (info == null) {
+            return;
+        }
+        results.add(info);
+        if (listener != null) {
+            listener.onResult(info);
+        }
     }
 
     @Override
     public String get(long keyId) throws QueryException {
-        HttpClient client = new DefaultHttpClient();
+        HttpGet get = new HttpGet("http://" + mHost + ":" + mPort
+                + "/pks/lookup?op=get&search=0x" + PgpKeyHelper.convertKeyToHex(keyId));
+        HttpResponse response = null;
         try {
-            HttpGet get = new HttpGet("http://" + mHost + ":" + mPort
-                    + "/pks/lookup?op=get&search=0x" + PgpKeyHelper.convertKeyToHex(keyId));
-
-            HttpResponse response = client.execute(get);
-            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+            response = getHttpClient().execute(get);
+            HttpEntity entity = response.getEntity();
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || entity == null) {
                 throw new QueryException("not found");
             }
 
-            HttpEntity entity = response.getEntity();
             InputStream is = entity.getContent();
             String data = readAll(is, EntityUtils.getContentCharSet(entity));
             Matcher matcher = PgpHelper.PGP_PUBLIC_KEY.matcher(data);
@@ -243,30 +421,124 @@ public class HkpKeyServer extends KeyServer {
         } catch (IOException e) {
             // nothing to do, better luck on the next keyserver
         } finally {
-            client.getConnectionManager().shutdown();
+            releaseConnection(get, response);
         }
 
         return null;
     }
 
+    /**
+     * Downloads the given keys using up to MAX_PARALLEL_DOWNLOADS connections, which are kept
+     * alive and reused between requests.
+     *
+     * @return armored keys in the order of the given key ids, null for keys that could not be
+     *         downloaded
+     */
+    public ArrayList<String> get(List<Long> keyIds) {
+        ArrayList<Callable<String>> tasks = new ArrayList<Callable<String>>();
+        for (final long keyId : keyIds) {
+            tasks.add(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return get(keyId);
+                }
+            });
+        }
+
+        ArrayList<String> results = new ArrayList<String>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+                Math.min(MAX_PARALLEL_DOWNLOADS, keyIds.size())));
+        try {
+            for (Future<String> future : executor.invokeAll(tasks)) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    Log.e(Constants.TAG, "Downloading key failed!", e.getCause());
+                    results.add(null);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.e(Constants.TAG, "Interrupted while downloading keys!", e);
+            while (results.size() < keyIds.size()) {
+                results.add(null);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return results;
+    }
+
     @Override
     public void add(String armoredText) throws AddKeyException {
-        HttpClient client = new DefaultHttpClient();
+        HttpPost post = new HttpPost("http://" + mHost + ":" + mPort + "/pks/add");
+        HttpResponse response = null;
         try {
-            HttpPost post = new HttpPost("http://" + mHost + ":" + mPort + "/pks/add");
-
             List<NameValuePair> nameValuePairs = new ArrayList<NameValuePair>(2);
             nameValuePairs.add(new BasicNameValuePair("keytext", armoredText));
             post.setEntity(new UrlEncodedFormEntity(nameValuePairs));
 
-            HttpResponse response = client.execute(post);
+            response = getHttpClient().execute(post);
             if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
                 throw new AddKeyException();
             }
         } catch (IOException e) {
             // nothing to do, better luck on the next keyserver
         } finally {
-            client.getConnectionManager().shutdown();
+            releaseConnection(post, response);
+        }
+    }
+
+    /**
+     * Gives the connection of a request back to the shared client, whatever happened to the
+     * response. The rest of the response is read so the connection can be reused, if that fails
+     * the request is aborted and its connection closed.
+     */
+    private static void releaseConnection(HttpUriRequest request, HttpResponse response) {
+        HttpEntity entity = (response != null) ? response.getEntity() : null;
+        if (entity == null) {
+            return;
+        }
+        try {
+            entity.consumeContent();
+        } catch (IOException e) {
+            request.abort();
+        }
+    }
+
+    /**
+     * Closes all connections kept alive for this keyserver. The object can still be used
+     * afterwards, new connections are opened as needed.
+     */
+    public synchronized void shutdown() {
+        if (mHttpClient != null) {
+            mHttpClient.getConnectionManager().shutdown();
+            mHttpClient = null;
+        }
+    }
+
+    /**
+     * Returns the client shared by all requests to this keyserver. Its connections are kept alive
+     * and reused, failed requests are retried if they are idempotent.
+     */
+    private synchronized HttpClient getHttpClient() {
+        if (mHttpClient == null) {
+            HttpParams params = new BasicHttpParams();
+            HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+            HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT);
+            ConnManagerParams.setMaxTotalConnections(params, MAX_PARALLEL_DOWNLOADS);
+            ConnManagerParams.setMaxConnectionsPerRoute(params,
+                    new ConnPerRouteBean(MAX_PARALLEL_DOWNLOADS));
+
+            SchemeRegistry schemeRegistry = new SchemeRegistry();
+            schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+
+            DefaultHttpClient client = new DefaultHttpClient(
+                    new ThreadSafeClientConnManager(params, schemeRegistry), params);
+            client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(MAX_RETRIES,
+                    false));
+            mHttpClient = client;
         }
+        return mHttpClient;
     }
 }
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A stage of a pipeline: data written to this stream is written to the wrapped stream by a
+ * separate thread, so the work done by the wrapped stream (e.g. compression or encryption) runs
+ * in parallel to the writing thread.
+ *
+ * Data is passed on in a fixed number of chunks, which are reused. If all chunks are waiting for
+ * the stage, the writing thread blocks until one is free again. Errors of the wrapped stream are
+ * thrown by the next write or by close().
+ *
+ * The stream must only be written by one thread. close() waits until all data has been written to
+ * the wrapped stream and closes it. If an error occurs before the stream is closed, abort() has
+ * to be called to stop the thread.
+ */
+public class PipelineOutputStream extends OutputStream {
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+    public static final int DEFAULT_CHUNK_COUNT = 4;
+
+    /** marks the end of the data in the queue of filled chunks */
+    private static final Chunk END = new Chunk(0);
+
+    private final OutputStream mOut;
+    private final ArrayBlockingQueue<Chunk> mFreeChunks;
+    private final ArrayBlockingQueue<Chunk> mFilledChunks;
+    private final Thread mThread;
+
+    /** chunk currently written to, only used by the writing thread */
+    private Chunk mChunk;
+    private boolean mClosed = false;
+    /** first error of the wrapped stream, later data is discarded */
+    private volatile Exception mError;
+
+    private final byte[] mSingleByte = new byte[1];
+
+    public PipelineOutputStream(OutputStream out, String name) {
+        this(out, name, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNK_COUNT);
+    }
+
+    public PipelineOutputStream(OutputStream out, String name, int chunkSize, int chunkCount) {
+        mOut = out;
+        mFreeChunks = new ArrayBlockingQueue<Chunk>(chunkCount);
+        // one more for END
+        mFilledChunks = new ArrayBlockingQueue<Chunk>(chunkCount + 1);
+        for (int i = 0; i < chunkCount; i++) {
+            mFreeChunks.add(new Chunk(chunkSize));
+        }
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processChunks();
+            }
+        }, "Pipeline " + name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mSingleByte[0] = (byte) b;
+        write(mSingleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream is closed!");
+        }
+
+        while (length > 0) {
+            if (mChunk == null) {
+                mChunk = takeFreeChunk();
+            }
+            int n = Math.min(length, mChunk.data.length - mChunk.length);
+            System.arraycopy(buffer, offset, mChunk.data, mChunk.length, n);
+            mChunk.length += n;
+            offset += n;
+            length -= n;
+
+            if (mChunk.length == mChunk.data.length) {
+                passChunk();
+            }
+        }
+    }
+
+    /**
+     * Passes buffered data on to the stage, but does not wait until it has been written
+     */
+    @Override
+    public void flush() throws IOException {
+        if (mChunk != null && mChunk.length > 0) {
+            passChunk();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        flush();
+        mClosed = true;
+
+        try {
+            mFilledChunks.put(END);
+            mThread.join();
+        } catch (InterruptedException e) {
+            abort();
+            throw new InterruptedIOException("Interrupted while closing pipeline stage!");
+        }
+        throwError();
+
+        mOut.close();
+    }
+
+    /**
+     * Stops the stage without writing the remaining data, does nothing if already closed
+     */
+    public void abort() {
+        mClosed = true;
+        mThread.interrupt();
+    }
+
+    private Chunk takeFreeChunk() throws IOException {
+        throwError();
+        try {
+            return mFreeChunks.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while writing to pipeline stage!");
+        }
+    }
+
+    private void passChunk() throws IOException {
+        throwError();
+        try {
+            mFilledChunks.put(mChunk);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while writing to pipeline stage!");
+        }
+        mChunk = null;
+    }
+
+    private void throwError() throws IOException {
+        if (mError != null) {
+            throw new IOException("Pipeline stage failed: " + mError.getMessage(), mError);
+        }
+    }
+
+    private void processChunks() {
+        try {
+            while (true) {
+                Chunk chunk = mFilledChunks.take();
+                if (chunk == END) {
+                    return;
+                }
+
+                if (mError == null) {
+                    try {
+                        mOut.write(chunk.data, 0, chunk.length);
+                    } catch (IOException e) {
+                        mError = e;
+                    } catch (RuntimeException e) {
+                        mError = e;
+                    }
+                }
+
+                // after an error chunks are still returned, so the writing thread never blocks
+                chunk.length = 0;
+                mFreeChunks.put(chunk);
+            }
+        } catch (InterruptedException e) {
+            // aborted
+        }
+    }
+
+    private static class Chunk {
+        final byte[] data;
+        int length = 0;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import android.os.SystemClock;
+
+/**
+ * Passes progress updates on to another ProgressDialogUpdater, but drops updates without a
+ * message that come in too fast or do not change the percentage. Operations reporting progress
+ * for every block of data would otherwise send thousands of messages to the UI.
+ *
+ * Updates with a message, and the update reaching the total, are always passed on. Can be used
+ * from several threads of one operation.
+ */
+public class ThrottledProgressDialogUpdater implements ProgressDialogUpdater {
+    public static final long MIN_INTERVAL_MILLIS = 100;
+
+    private final ProgressDialogUpdater mUpdater;
+
+    private long mLastTime = 0;
+    private int mLastPercent = -1;
+
+    private ThrottledProgressDialogUpdater(ProgressDialogUpdater updater) {
+        mUpdater = updater;
+    }
+
+    /**
+     * @return throttled updater, or null if the given updater is null
+     */
+    public static ProgressDialogUpdater wrap(ProgressDialogUpdater updater) {
+        if (updater == null || updater instanceof ThrottledProgressDialogUpdater) {
+            return updater;
+        }
+        return new ThrottledProgressDialogUpdater(updater);
+    }
+
+    @Override
+    public synchronized void setProgress(String message, int current, int total) {
+        dispatched(current, total);
+        mUpdater.setProgress(message, current, total);
+    }
+
+    @Override
+    public synchronized void setProgress(int resourceId, int current, int total) {
+        dispatched(current, total);
+        mUpdater.setProgress(resourceId, current, total);
+    }
+
+    @Override
+    public synchronized void setProgress(int current, int total) {
+        if (current < total) {
+            long now = SystemClock.elapsedRealtime();
+            if (now - mLastTime < MIN_INTERVAL_MILLIS || getPercent(current, total) == mLastPercent) {
+                return;
+            }
+        }
+        dispatched(current, total);
+        mUpdater.setProgress(current, total);
+    }
+
+    private void dispatched(int current, int total) {
+        mLastTime = SystemClock.elapsedRealtime();
+        mLastPercent = getPercent(current, total);
+    }
+
+    private static int getPercent(int current, int total) {
+        return (total > 0) ? (int) (100L * current / total) : 0;
+    }
+}